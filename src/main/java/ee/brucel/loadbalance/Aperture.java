@@ -0,0 +1,91 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Deterministic subsetting ("deterministic aperture") of a large group of
+// balancees, so that each client only balances over, and holds connections
+// to, a small part of the group.
+//
+// The balancees are laid out on a ring in the order of a hash of their URI,
+// each owning an equal arc, and the clients are laid out evenly on the same
+// ring by client ID. A client's subset is every balancee whose arc midpoint
+// falls within the client's window, which starts at the client's position
+// and is subsetSize arcs wide. So:
+// - every client computes the same subsets, with no coordination;
+// - every balancee is picked by the same number of clients, give or take
+//   one, as long as subsetSize * clientCount >= the number of balancees
+//   (otherwise windows are widened until the ring is covered);
+// - adding or removing a balancee only nudges the other midpoints by a
+//   fraction of an arc, so each client's subset changes by at most the
+//   balancee itself plus one at either edge of its window.
+class Aperture {
+	public static List<URI> subset(List<URI> balancees, int subsetSize, int clientId,
+			int clientCount) {
+		if (clientCount <= 0 || clientId < 0 || clientId >= clientCount) {
+			throw new IllegalArgumentException("Client " + clientId + " of " + clientCount);
+		}
+		if (subsetSize <= 0) {
+			throw new IllegalArgumentException("Subset size " + subsetSize);
+		}
+		URI[] unique = BalanceeGroup.sortURIs(balancees);
+		long n = unique.length;
+		if (subsetSize >= n) {
+			return Arrays.asList(unique);
+		}
+		Position[] ring = new Position[unique.length];
+		for (int j = 0; j < ring.length; j++) {
+			ring[j] = new Position(unique[j]);
+		}
+		Arrays.sort(ring);
+
+		// Positions are measured in units of 1 / (2 * n * clientCount) of the
+		// ring, so that every midpoint and client position is a whole number.
+		long ringSize = 2 * n * clientCount;
+		long offset = 2 * n * clientId;
+		long width = Math.max(2L * subsetSize * clientCount, 2 * n);
+		List<URI> subset = new ArrayList<URI>();
+		for (int j = 0; j < n; j++) {
+			long midpoint = (2L * j + 1) * clientCount;
+			long distance = Math.floorMod(midpoint - offset, ringSize);
+			if (distance < width) {
+				subset.add(ring[j].uri);
+			}
+		}
+		return subset;
+	}
+
+	// 64 bit FNV-1a of the URI, finished with the MurmurHash3 mixer so that
+	// similar URIs land far apart on the ring.
+	private static long hash(URI uri) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : uri.toASCIIString().getBytes(StandardCharsets.US_ASCII)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static class Position implements Comparable<Position> {
+		private final URI uri;
+		private final long hash;
+
+		Position(URI uri) {
+			this.uri = uri;
+			this.hash = hash(uri);
+		}
+
+		public int compareTo(Position other) {
+			int comparison = Long.compare(hash, other.hash);
+			return comparison != 0 ? comparison : uri.compareTo(other.uri);
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pushes a stream of work items through the LoadBalancer. Each item that
+// arrives from upstream is handed to the executor, which performs it as
+// doWorkOnAllBalancees does: no balancee is given more than
+// concurrencyPerBalancee requests at once, unhealthy balancees are failed
+// over inline, and an item that every balancee has failed fails the stream.
+// The result is published downstream.
+//
+// Items are only requested from upstream while the group has spare
+// capacity, taken as concurrencyPerBalancee for every healthy member minus
+// what is already in flight to the group, and while downstream has demand
+// for the results. Results are published in the order in which they complete, or in
+// the order the items arrived if preserveOrder is set.
+//
+// A strategy that throws anything other than ResourceUnhealthyException, or
+// returns null, fails the stream and cancels upstream.
+public class BalancedWorkProcessor<C, T> implements Flow.Processor<C, T> {
+	private final String key;
+	private final ContextWorkStrategy<C, T> strategy;
+	// Items received from upstream that have not yet been given a balancee,
+	// and so are not yet part of the group's in-flight total.
+	private final AtomicInteger awaitingBalancee = new AtomicInteger(0);
+	private final ContextWorkStrategy<Item<C>, T> itemStrategy = new ContextWorkStrategy<Item<C>, T>() {
+		public T processWork(URI uri, Item<C> item) throws ResourceUnhealthyException {
+			// By now the balancee's permit has been taken.
+			if (!item.started) {
+				item.started = true;
+				awaitingBalancee.decrementAndGet();
+			}
+			return strategy.processWork(uri, item.context);
+		}
+	};
+	private final Executor executor;
+	private final int concurrencyPerBalancee;
+	private final boolean preserveOrder;
+
+	// All of the below is guarded by this.
+	private Flow.Subscription upstream = null;
+	// Set once downstream has been sent onSubscribe, so that nothing else
+	// is signalled to it first.
+	private Flow.Subscriber<? super T> downstream = null;
+	private boolean subscribed = false;
+	private long downstreamDemand = 0;
+	private long upstreamOutstanding = 0;
+	// Items handed to the executor that have not finished yet.
+	private int running = 0;
+	private long nextSequence = 0;
+	private long nextToPublish = 0;
+	private final ArrayDeque<T> completedInAnyOrder = new ArrayDeque<T>();
+	private final Map<Long, T> completedInOrder = new HashMap<Long, T>();
+	private boolean upstreamDone = false;
+	private Throwable upstreamError = null;
+	private Throwable failure = null;
+	private boolean cancelled = false;
+	private boolean terminated = false;
+	// Only one thread signals downstream or requests upstream at a time.
+	private boolean draining = false;
+	private boolean missed = false;
+
+	public BalancedWorkProcessor(String key, ContextWorkStrategy<C, T> strategy,
+			Executor executor) {
+		this(key, strategy, executor, LoadBalancer.BATCH_CONCURRENCY_PER_BALANCEE, false);
+	}
+
+	public BalancedWorkProcessor(String key, ContextWorkStrategy<C, T> strategy,
+			Executor executor, int concurrencyPerBalancee, boolean preserveOrder) {
+		this.key = key;
+		this.strategy = strategy;
+		this.executor = executor;
+		this.concurrencyPerBalancee = concurrencyPerBalancee;
+		this.preserveOrder = preserveOrder;
+	}
+
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		boolean accepted;
+		synchronized (this) {
+			accepted = !subscribed;
+			subscribed = true;
+		}
+		if (!accepted) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+				}
+
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException(
+					"BalancedWorkProcessor supports a single subscriber"));
+			return;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				synchronized (BalancedWorkProcessor.this) {
+					if (n <= 0) {
+						if (failure == null) {
+							failure = new IllegalArgumentException(
+									"Non-positive request of " + n);
+						}
+					} else {
+						downstreamDemand = downstreamDemand + n < 0 ? Long.MAX_VALUE
+								: downstreamDemand + n;
+					}
+				}
+				drain();
+			}
+
+			public void cancel() {
+				synchronized (BalancedWorkProcessor.this) {
+					cancelled = true;
+				}
+				drain();
+			}
+		});
+		// Anything requested or cancelled from within onSubscribe has been
+		// recorded, and is acted on now.
+		synchronized (this) {
+			downstream = subscriber;
+		}
+		drain();
+	}
+
+	public void onSubscribe(Flow.Subscription subscription) {
+		boolean accepted;
+		synchronized (this) {
+			// A stream that already failed or was cancelled wants nothing.
+			accepted = upstream == null && !terminated;
+			if (accepted) {
+				upstream = subscription;
+			}
+		}
+		if (!accepted) {
+			subscription.cancel();
+			return;
+		}
+		drain();
+	}
+
+	public void onNext(C context) {
+		final Item<C> item;
+		synchronized (this) {
+			if (terminated) {
+				return;
+			}
+			upstreamOutstanding--;
+			item = new Item<C>(context, nextSequence++);
+			awaitingBalancee.incrementAndGet();
+			running++;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					perform(item);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			synchronized (this) {
+				awaitingBalancee.decrementAndGet();
+				running--;
+				if (failure == null) {
+					failure = ree;
+				}
+			}
+			drain();
+		}
+	}
+
+	public void onError(Throwable throwable) {
+		synchronized (this) {
+			upstreamDone = true;
+			upstreamError = throwable;
+		}
+		drain();
+	}
+
+	public void onComplete() {
+		synchronized (this) {
+			upstreamDone = true;
+		}
+		drain();
+	}
+
+	private void perform(Item<C> item) {
+		T result = null;
+		Throwable error = null;
+		try {
+			result = LoadBalancer.doWorkOnBestBalancee(key, itemStrategy, item,
+					concurrencyPerBalancee);
+			if (result == null) {
+				error = new NullPointerException("Strategy returned null for " + item.context);
+			}
+		} catch (Throwable t) {
+			// Errors too, or running would never get back to zero.
+			error = t;
+		}
+		synchronized (this) {
+			if (!item.started) {
+				awaitingBalancee.decrementAndGet();
+			}
+			running--;
+			if (error != null) {
+				if (failure == null) {
+					failure = error;
+				}
+			} else if (preserveOrder) {
+				completedInOrder.put(item.sequence, result);
+			} else {
+				completedInAnyOrder.add(result);
+			}
+		}
+		drain();
+	}
+
+	private void drain() {
+		synchronized (this) {
+			if (draining) {
+				missed = true;
+				return;
+			}
+			draining = true;
+			missed = false;
+		}
+		for (;;) {
+			Flow.Subscriber<? super T> subscriber;
+			Flow.Subscription subscription;
+			T next = null;
+			Throwable error = null;
+			boolean complete = false;
+			boolean cancelUpstream = false;
+			long toRequest = 0;
+			synchronized (this) {
+				subscriber = downstream;
+				subscription = upstream;
+				if (terminated) {
+					draining = false;
+					return;
+				}
+				if (cancelled) {
+					terminated = true;
+					cancelUpstream = true;
+				} else if (subscriber == null) {
+					// Nothing can be published or requested until there is
+					// someone to publish to.
+					draining = false;
+					return;
+				} else if (failure != null) {
+					terminated = true;
+					cancelUpstream = true;
+					error = failure;
+				} else if (downstreamDemand > 0 && (next = pollCompleted()) != null) {
+					if (downstreamDemand != Long.MAX_VALUE) {
+						downstreamDemand--;
+					}
+				} else if (upstreamDone && running == 0 && !hasCompleted()) {
+					terminated = true;
+					error = upstreamError;
+					complete = error == null;
+				} else {
+					toRequest = upstreamRequestSize();
+					upstreamOutstanding += toRequest;
+					if (toRequest == 0) {
+						if (!missed) {
+							draining = false;
+							return;
+						}
+						missed = false;
+						continue;
+					}
+				}
+			}
+			if (cancelUpstream && subscription != null) {
+				subscription.cancel();
+			}
+			if (error != null) {
+				subscriber.onError(error);
+			} else if (complete) {
+				subscriber.onComplete();
+			} else if (next != null) {
+				subscriber.onNext(next);
+			} else if (toRequest > 0) {
+				subscription.request(toRequest);
+			}
+		}
+	}
+
+	// Called with the lock held.
+	private long upstreamRequestSize() {
+		if (upstream == null || upstreamDone) {
+			return 0;
+		}
+		long room = downstreamDemand - running - completedCount() - upstreamOutstanding;
+		if (room <= 0) {
+			return 0;
+		}
+		BalanceeGroup balancees = LoadBalancer.getGroup(key);
+		long capacity = 0;
+		if (balancees != null) {
+			// Read before the in-flight total: an item that takes a permit
+			// after this read is still counted here, so nothing is missed.
+			int awaiting = awaitingBalancee.get();
+			capacity = (long) balancees.healthyCount() * concurrencyPerBalancee
+					- balancees.totalInFlight() - awaiting - upstreamOutstanding;
+		}
+		if (capacity <= 0 && running == 0 && upstreamOutstanding == 0) {
+			// Capacity is being used up by someone else. Nothing of ours
+			// finishing would wake us up again, so keep one item moving.
+			capacity = 1;
+		}
+		// Capacity is negative while others have overdrawn the group, which
+		// must not be taken off upstreamOutstanding.
+		return Math.max(Math.min(room, capacity), 0);
+	}
+
+	private T pollCompleted() {
+		if (preserveOrder) {
+			T next = completedInOrder.remove(nextToPublish);
+			if (next != null) {
+				nextToPublish++;
+			}
+			return next;
+		}
+		return completedInAnyOrder.poll();
+	}
+
+	private boolean hasCompleted() {
+		return completedCount() > 0;
+	}
+
+	private int completedCount() {
+		return preserveOrder ? completedInOrder.size() : completedInAnyOrder.size();
+	}
+
+	private static class Item<C> {
+		private final C context;
+		private final long sequence;
+		// Only touched by the thread performing the item.
+		private boolean started = false;
+
+		Item(C context, long sequence) {
+			this.context = context;
+			this.sequence = sequence;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+// State for one group of balancees, stored as parallel primitive arrays
+// indexed by member ID. Member IDs are the positions of the URIs once
+// sorted alphabetically, so sortedURIs[i], in-flight count i, lastUsed[i]
+// and health bit i all describe the same balancee.
+//
+// The in-flight counters and health flags live in a GroupState, which is
+// either on the heap or shared with other processes through a mapped file.
+//
+// Selection (acquire) happens under the group's monitor and is a linear scan
+// over the in-flight counters, which for a large group walks a handful of
+// contiguous cache lines rather than chasing TreeSet nodes around the heap.
+// Releasing only updates the member's counter atomically and never takes
+// the lock; see HeapGroupState for how releases avoid false sharing.
+class BalanceeGroup {
+	private static final Logger logger = Logger.getLogger(BalanceeGroup.class);
+	static final int PERMITS_PER_BALANCEE = 1000;
+	// Members of a shared group are released by other processes too, which
+	// cannot wake up waiters here, so waiters also look again this often.
+	private static final long PERMIT_WAIT_MILLIS = 10;
+
+	private final String key;
+	private final URI[] sortedURIs;
+	private final GroupState state;
+	private final long[] lastUsed;
+	private int permitLimit = PERMITS_PER_BALANCEE;
+	private volatile SessionAffinityTable sessionAffinity = null;
+	// Members that listeners have been told are unhealthy, and have not yet
+	// been told have recovered.
+	private final long[] reportedUnhealthy;
+	private int reportedUnhealthyCount = 0;
+	// Threads waiting in acquireBest(limit); only changed with the lock held.
+	private volatile int waitingForPermit = 0;
+
+	public BalanceeGroup(String key, Collection<URI> initialItems) {
+		this(key, sortURIs(initialItems), null);
+	}
+
+	// sortedURIs must already be sorted and free of duplicates; a null
+	// state means process-local state on the heap.
+	BalanceeGroup(String key, URI[] sortedURIs, GroupState state) {
+		this.key = key;
+		this.sortedURIs = sortedURIs;
+		this.state = state != null ? state : new HeapGroupState(sortedURIs.length);
+		lastUsed = new long[sortedURIs.length];
+		Arrays.fill(lastUsed, -1);
+		reportedUnhealthy = new long[(sortedURIs.length + 63) >>> 6];
+	}
+
+	static URI[] sortURIs(Collection<URI> items) {
+		TreeSet<URI> unique = new TreeSet<URI>(items);
+		return unique.toArray(new URI[unique.size()]);
+	}
+
+	public URI[] getSortedURIs() {
+		return sortedURIs;
+	}
+
+	public SessionAffinityTable getSessionAffinity() {
+		return sessionAffinity;
+	}
+
+	public void setSessionAffinity(SessionAffinityTable sessionAffinity) {
+		this.sessionAffinity = sessionAffinity;
+	}
+
+	public int size() {
+		return sortedURIs.length;
+	}
+
+	public URI getResource(int index) {
+		return sortedURIs[index];
+	}
+
+	public int indexOf(URI resource) {
+		if (resource == null) {
+			return -1;
+		}
+		int index = Arrays.binarySearch(sortedURIs, resource);
+		return index < 0 ? -1 : index;
+	}
+
+	public int inFlight(int index) {
+		return state.inFlight(index);
+	}
+
+	public int totalInFlight() {
+		int total = 0;
+		for (int i = 0; i < sortedURIs.length; i++) {
+			total += state.inFlight(i);
+		}
+		return total;
+	}
+
+	// Members not currently reported unhealthy.
+	public synchronized int healthyCount() {
+		int healthy = 0;
+		for (int i = 0; i < sortedURIs.length; i++) {
+			if (!state.isUnhealthy(i)) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	// Picks the least burdened healthy member, preferring the one used least
+	// recently and then the alphabetically first, and takes a permit on it.
+	// Returns -1 for an empty group.
+	public int acquireBest() {
+		if (!EventDispatcher.isEnabled()) {
+			synchronized (this) {
+				return acquireBest(0, Integer.MAX_VALUE);
+			}
+		}
+		long requested = System.nanoTime();
+		synchronized (this) {
+			return acquireBest(requested, Integer.MAX_VALUE);
+		}
+	}
+
+	// Like acquireBest, but passes over members that already have limit
+	// permits taken, and waits for one to be released if every healthy
+	// member is at the limit.
+	public int acquireBest(int limit) {
+		long requested = EventDispatcher.isEnabled() ? System.nanoTime() : 0;
+		boolean interrupted = false;
+		synchronized (this) {
+			try {
+				int index = acquireBest(requested, limit);
+				while (index < 0 && sortedURIs.length > 0) {
+					waitingForPermit++;
+					try {
+						// Look again now that release knows to wake us up.
+						index = acquireBest(requested, limit);
+						if (index < 0) {
+							wait(PERMIT_WAIT_MILLIS);
+							index = acquireBest(requested, limit);
+						}
+					} catch (InterruptedException ie) {
+						interrupted = true;
+					} finally {
+						waitingForPermit--;
+					}
+				}
+				return index;
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	// Called with the lock held; requested is 0 when nobody is listening.
+	// Returns -1 if the group is empty or every member that could be picked
+	// is at the limit.
+	private int acquireBest(long requested, int limit) {
+		long locked = requested == 0 ? 0 : System.nanoTime();
+		state.foldReleases();
+		int best = -1;
+		int bestCount = 0;
+		int bestHealthy = -1;
+		int bestHealthyCount = 0;
+		boolean healthyAtLimit = false;
+		int maxInFlight = 0;
+		for (int i = 0; i < sortedURIs.length; i++) {
+			int count = state.inFlight(i);
+			if (count > maxInFlight) {
+				maxInFlight = count;
+			}
+			if (count >= limit) {
+				healthyAtLimit = healthyAtLimit || !state.isUnhealthy(i);
+				continue;
+			}
+			if (best < 0 || isLessBurdened(i, count, best, bestCount)) {
+				best = i;
+				bestCount = count;
+			}
+			if ((bestHealthy < 0 || isLessBurdened(i, count, bestHealthy, bestHealthyCount))
+					&& !state.isUnhealthy(i)) {
+				bestHealthy = i;
+				bestHealthyCount = count;
+			}
+		}
+		if (maxInFlight >= permitLimit) {
+			addPermits();
+		}
+		// Wait for a healthy member rather than fall back on an unhealthy one.
+		if (best < 0 || (bestHealthy < 0 && healthyAtLimit)) {
+			return -1;
+		}
+		// if all are unhealthy, then let's return the one which was
+		// least burdened. Consumer should handle that all servers
+		// are down.
+		int candidate = bestHealthy >= 0 ? bestHealthy : best;
+		int skippedUnhealthy = requested == 0 ? 0
+				: countSkippedUnhealthy(candidate, bestHealthy >= 0 ? bestHealthyCount : bestCount);
+		acquire(candidate);
+		if (requested != 0) {
+			if (reportedUnhealthyCount > 0) {
+				publishRecoveries();
+			}
+			long now = System.nanoTime();
+			EventDispatcher.publish(LoadBalancerEvent.Type.SELECTED, key,
+					sortedURIs[candidate], now, locked - requested, now - locked,
+					sortedURIs.length, skippedUnhealthy, 0);
+		}
+		return candidate;
+	}
+
+	// Takes a permit on a specific member regardless of its health, as
+	// needed by sticky sessions.
+	public synchronized void acquireSpecific(int index) {
+		if (state.inFlight(index) >= permitLimit) {
+			addPermits();
+		}
+		acquire(index);
+		if (EventDispatcher.isEnabled()) {
+			EventDispatcher.publish(LoadBalancerEvent.Type.SELECTED, key,
+					sortedURIs[index], System.nanoTime(), 0, 0, 1, 0, 0);
+		}
+	}
+
+	public void release(int index) {
+		release(index, -1);
+	}
+
+	// heldNanos is how long the caller had the permit, or -1 if not known.
+	public void release(int index, long heldNanos) {
+		state.decrementInFlight(index);
+		if (waitingForPermit > 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		if (EventDispatcher.isEnabled()) {
+			EventDispatcher.publish(LoadBalancerEvent.Type.RELEASED, key,
+					sortedURIs[index], System.nanoTime(), 0, heldNanos, 0, 0, 0);
+		}
+	}
+
+	// Lets go of anything the group's state holds outside the heap, once the
+	// requests already out have been released.
+	public void close() {
+		state.close();
+	}
+
+	public synchronized void markAsUnhealthy(int index) {
+		state.markAsUnhealthy(index);
+		if (EventDispatcher.isEnabled()) {
+			// Remembered so that the recovery can be reported as well.
+			if ((reportedUnhealthy[index >>> 6] & (1L << index)) == 0) {
+				reportedUnhealthy[index >>> 6] |= 1L << index;
+				reportedUnhealthyCount++;
+			}
+			EventDispatcher.publish(LoadBalancerEvent.Type.MARKED_UNHEALTHY, key,
+					sortedURIs[index], System.nanoTime(), 0, 0, 0, 0, 0);
+		}
+	}
+
+	public synchronized void markAsUnhealthy(int index, long ageMillis) {
+		state.markAsUnhealthy(index, ageMillis);
+	}
+
+	public synchronized long unhealthyAgeMillis(int index) {
+		return state.unhealthyAgeMillis(index);
+	}
+
+	public synchronized boolean isUnhealthy(int index) {
+		return state.isUnhealthy(index);
+	}
+
+	// The unhealthy members that would have been picked over the candidate
+	// had they been healthy. Only worked out when someone is listening.
+	private int countSkippedUnhealthy(int candidate, int candidateCount) {
+		int skipped = 0;
+		for (int i = 0; i < sortedURIs.length; i++) {
+			if (isLessBurdened(i, state.inFlight(i), candidate, candidateCount)
+					&& state.isUnhealthy(i)) {
+				skipped++;
+			}
+		}
+		return skipped;
+	}
+
+	// Only visits the members listeners were told are unhealthy.
+	private void publishRecoveries() {
+		for (int word = 0; word < reportedUnhealthy.length && reportedUnhealthyCount > 0; word++) {
+			long bits = reportedUnhealthy[word];
+			while (bits != 0) {
+				int i = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if (!state.isUnhealthy(i)) {
+					reportedUnhealthy[word] &= ~(1L << i);
+					reportedUnhealthyCount--;
+					EventDispatcher.publish(LoadBalancerEvent.Type.RECOVERED, key,
+							sortedURIs[i], System.nanoTime(), 0, 0, 0, 0, 0);
+				}
+			}
+		}
+	}
+
+	private void acquire(int index) {
+		state.incrementInFlight(index);
+		lastUsed[index] = System.nanoTime();
+	}
+
+	private boolean isLessBurdened(int index, int count, int other, int otherCount) {
+		if (count != otherCount) {
+			return count < otherCount;
+		}
+		return lastUsed[index] < lastUsed[other];
+	}
+
+	private void addPermits() {
+		// Also need to warn that there is likely a consumer that is
+		// 'leaking' balancees. Fairness is still preserved as the limit
+		// is raised for every member at once.
+		logger.warn("A consumer is likely leaking balancees for key " + key
+				+ ". Re-adding to permits.");
+		permitLimit += PERMITS_PER_BALANCEE;
+	}
+}
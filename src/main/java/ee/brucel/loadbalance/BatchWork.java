@@ -0,0 +1,161 @@
+package ee.brucel.loadbalance;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Performs one strategy over a list of contexts, for doWorkOnAllBalancees.
+//
+// Batches run on a ForkJoinPool per group, as at most one worker per unit
+// of group capacity (concurrencyPerBalancee for every member). Workers
+// block in the strategy and while waiting for a balancee to free up, so a
+// pool shared by every group would let one large batch hold every thread
+// while batches for other groups queue behind it. Batches on the same
+// group share its pool, as they share its balancees. Each
+// worker takes the next item as soon as it has finished the last, so items
+// flow to whichever balancees are finishing fastest and a slow one does not
+// hold up the rest. Items are performed with doWorkOnBestBalancee, limited
+// to concurrencyPerBalancee requests per balancee; when every healthy
+// balancee is at the limit the worker waits for one to free up. The limit
+// is checked against the group's own in-flight counts, so it also holds
+// across concurrent batches and other callers.
+//
+// An item is retried on other balancees when one reports itself unhealthy,
+// until it is handed a balancee that has already failed it; it then fails
+// with an IllegalStateException wrapping the last ResourceUnhealthyException.
+// The first item to fail with anything other than ResourceUnhealthyException
+// fails the batch: items not yet started are skipped, the ones already
+// running are waited for, and then that item's exception is thrown, wrapped
+// in an UndeclaredThrowableException if it is a checked one.
+class BatchWork<C, T> {
+	// Bounds the threads used by the batches of one group together.
+	private static final int MAX_WORKERS = 256;
+	private static final Map<String, ForkJoinPool> pools = new ConcurrentHashMap<String, ForkJoinPool>();
+
+	private final String key;
+	private final ContextWorkStrategy<C, T> strategy;
+	private final List<? extends C> contexts;
+	private final Object[] results;
+	private final int concurrencyPerBalancee;
+	private final AtomicInteger nextItem = new AtomicInteger(0);
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	// Checked again once a balancee has been given, as the wait for one may
+	// have outlasted the batch.
+	private final ContextWorkStrategy<C, T> unlessFailed = new ContextWorkStrategy<C, T>() {
+		public T processWork(URI uri, C context) throws ResourceUnhealthyException {
+			if (failure.get() != null) {
+				throw new CancellationException();
+			}
+			return strategy.processWork(uri, context);
+		}
+	};
+
+	private BatchWork(String key, ContextWorkStrategy<C, T> strategy,
+			List<? extends C> contexts, int concurrencyPerBalancee) {
+		this.key = key;
+		this.strategy = strategy;
+		this.contexts = contexts;
+		this.results = new Object[contexts.size()];
+		this.concurrencyPerBalancee = concurrencyPerBalancee;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <C, T> List<T> perform(String key, ContextWorkStrategy<C, T> strategy,
+			List<? extends C> contexts, int concurrencyPerBalancee) {
+		if (concurrencyPerBalancee <= 0) {
+			throw new IllegalArgumentException("Concurrency per balancee " + concurrencyPerBalancee);
+		}
+		// Indexed access below should not walk a linked list.
+		BatchWork<C, T> batch = new BatchWork<C, T>(key, strategy,
+				new ArrayList<C>(contexts), concurrencyPerBalancee);
+		batch.run();
+		return (List<T>) Arrays.asList(batch.results);
+	}
+
+	private void run() {
+		if (results.length == 0) {
+			return;
+		}
+		BalanceeGroup balancees = LoadBalancer.getGroup(key);
+		long capacity = balancees == null ? 1 : (long) balancees.size() * concurrencyPerBalancee;
+		int workers = (int) Math.max(Math.min(Math.min(capacity, MAX_WORKERS), results.length), 1);
+		// Submitted to the pool one by one: a root task that forked them
+		// could be run on the calling thread instead, and forks from there
+		// go to the common pool.
+		ForkJoinPool pool = pool(key);
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(workers);
+		for (int i = 0; i < workers; i++) {
+			RecursiveAction task = new RecursiveAction() {
+				@Override
+				protected void compute() {
+					work();
+				}
+			};
+			pool.execute(task);
+			tasks.add(task);
+		}
+		// Workers never throw, so this returns only once all have finished.
+		for (RecursiveAction task : tasks) {
+			task.join();
+		}
+		Throwable error = failure.get();
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		if (error instanceof Error) {
+			throw (Error) error;
+		}
+		if (error != null) {
+			throw new UndeclaredThrowableException(error);
+		}
+	}
+
+	private void work() {
+		int index;
+		while (failure.get() == null && (index = nextItem.getAndIncrement()) < results.length) {
+			try {
+				results[index] = LoadBalancer.doWorkOnBestBalancee(key, unlessFailed,
+						contexts.get(index), concurrencyPerBalancee);
+			} catch (Throwable t) {
+				// Only the first failure counts; the cancellations it causes
+				// are dropped here.
+				failure.compareAndSet(null, t);
+			}
+		}
+	}
+
+	// Idle workers are retired by the pool itself, so a group that no longer
+	// runs batches does not keep its threads.
+	private static ForkJoinPool pool(final String key) {
+		ForkJoinPool pool = pools.get(key);
+		if (pool == null) {
+			ForkJoinPool created = new ForkJoinPool(MAX_WORKERS,
+					new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+						public ForkJoinWorkerThread newThread(ForkJoinPool forkJoinPool) {
+							ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+									.newThread(forkJoinPool);
+							thread.setName("loadbalance-batch-" + key + "-" + thread.getPoolIndex());
+							return thread;
+						}
+					}, null, false);
+			pool = pools.putIfAbsent(key, created);
+			if (pool == null) {
+				pool = created;
+			} else {
+				// Another batch got there first; this one never started a thread.
+				created.shutdown();
+			}
+		}
+		return pool;
+	}
+}
@@ -0,0 +1,10 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+
+// Like ResourceWorkStrategy, but the work is described by a typed context
+// object chosen by the consumer instead of a Map of parameters. A context
+// that is reused across calls keeps the request path free of allocation.
+public interface ContextWorkStrategy<C, T> {
+	T processWork(URI uri, C context) throws ResourceUnhealthyException, IllegalArgumentException;
+}
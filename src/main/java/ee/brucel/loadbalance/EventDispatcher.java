@@ -0,0 +1,120 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+// Hands LoadBalancerEvents from the threads doing work to the registered
+// listeners through a fixed size ring buffer drained by one daemon thread.
+//
+// Publishing claims the next slot with a compare-and-set on the head
+// sequence, fills the preallocated event in place and then publishes the
+// slot by writing its sequence. If the ring is full, because listeners are
+// too slow, the event is counted and dropped rather than waited for.
+// While there are no listeners nothing is published at all, and the
+// dispatching thread sleeps until one is added.
+class EventDispatcher {
+	private static final Logger logger = Logger.getLogger(EventDispatcher.class);
+	private static final int CAPACITY = 4096;
+	private static final int MASK = CAPACITY - 1;
+	private static final long MAX_IDLE_NANOS = 1000000;
+
+	private static final LoadBalancerEvent[] events = new LoadBalancerEvent[CAPACITY];
+	private static final AtomicLong[] published = new AtomicLong[CAPACITY];
+	private static final AtomicLong head = new AtomicLong(0);
+	// Only written by the dispatching thread.
+	private static volatile long tail = 0;
+	private static final AtomicLong dropped = new AtomicLong(0);
+	private static final List<LoadBalancerListener> listeners = new CopyOnWriteArrayList<LoadBalancerListener>();
+	private static volatile boolean enabled = false;
+	private static Thread dispatcher = null;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			events[i] = new LoadBalancerEvent();
+			published[i] = new AtomicLong(i - CAPACITY);
+		}
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	static synchronized void addListener(LoadBalancerListener listener) {
+		listeners.add(listener);
+		if (dispatcher == null) {
+			dispatcher = new Thread(new Runnable() {
+				public void run() {
+					dispatch();
+				}
+			}, "loadbalance-events");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+		enabled = true;
+		// In case the dispatching thread went to sleep with no listeners.
+		LockSupport.unpark(dispatcher);
+	}
+
+	static synchronized void removeListener(LoadBalancerListener listener) {
+		listeners.remove(listener);
+		enabled = !listeners.isEmpty();
+	}
+
+	static long getDroppedCount() {
+		return dropped.get();
+	}
+
+	static void publish(LoadBalancerEvent.Type type, String key, URI resource,
+			long timeNanos, long waitNanos, long durationNanos, int candidates,
+			int skippedUnhealthy, int attempt) {
+		long sequence;
+		do {
+			sequence = head.get();
+			if (sequence - tail >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(sequence, sequence + 1));
+		int slot = (int) sequence & MASK;
+		events[slot].set(type, key, resource, timeNanos, waitNanos, durationNanos,
+				candidates, skippedUnhealthy, attempt);
+		published[slot].set(sequence);
+	}
+
+	private static void dispatch() {
+		long idleNanos = 1000;
+		while (true) {
+			long sequence = tail;
+			int slot = (int) sequence & MASK;
+			if (published[slot].get() != sequence) {
+				if (!enabled) {
+					// Nothing more will be published until a listener is
+					// added, which wakes this thread up again.
+					LockSupport.park();
+					continue;
+				}
+				LockSupport.parkNanos(idleNanos);
+				idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+				continue;
+			}
+			idleNanos = 1000;
+			LoadBalancerEvent event = events[slot];
+			for (LoadBalancerListener listener : listeners) {
+				try {
+					listener.onEvent(event);
+				} catch (Throwable t) {
+					// Errors too: this thread is never restarted, so letting
+					// one through would silently drop every later event.
+					logger.warn("LoadBalancerListener " + listener + " failed", t);
+				}
+			}
+			// Frees the slot for publishers.
+			tail = sequence + 1;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package ee.brucel.loadbalance;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+// Compact binary snapshot of what a balancee group has learned about its
+// members, so that a freshly started process does not have to rediscover
+// which backends its predecessor already knew to be unhealthy.
+//
+// Layout (big endian):
+//   int   magic
+//   int   version
+//   long  wall clock millis at which the snapshot was written
+//   int   member count
+//   per member:
+//     short  length of the URI in bytes, followed by its US-ASCII form
+//     long   millis since the member was reported unhealthy, or -1
+//
+// In-flight counts are deliberately not recorded; the requests they
+// describe died with the process that wrote the snapshot.
+class GroupSnapshot {
+	private static final Logger logger = Logger.getLogger(GroupSnapshot.class);
+	private static final int MAGIC = 0x4C42534E;
+	private static final int VERSION = 1;
+	// Far more than any real group needs; anything bigger is not a snapshot.
+	static final long MAX_SNAPSHOT_BYTES = 64L * 1024 * 1024;
+
+	// Writes to a temporary file of its own next to the snapshot and then
+	// moves it into place, so that a reader never sees a partially written
+	// snapshot and concurrent writers never write into each other's file.
+	static void write(BalanceeGroup group, Path file) throws IOException {
+		byte[][] encodedURIs = new byte[group.size()][];
+		int length = 20;
+		for (int i = 0; i < group.size(); i++) {
+			encodedURIs[i] = group.getResource(i).toASCIIString()
+					.getBytes(StandardCharsets.US_ASCII);
+			length += 2 + encodedURIs[i].length + 8;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.putInt(group.size());
+		for (int i = 0; i < group.size(); i++) {
+			buffer.putShort((short) encodedURIs[i].length);
+			buffer.put(encodedURIs[i]);
+			buffer.putLong(group.unhealthyAgeMillis(i));
+		}
+		buffer.flip();
+
+		Path absolute = file.toAbsolutePath();
+		Path temporary = Files.createTempFile(absolute.getParent(),
+				absolute.getFileName() + ".", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			}
+			Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	// Applies a snapshot to a group. Members that are no longer in the group
+	// are ignored, and health reports are aged by the time that has passed
+	// since the snapshot was written, so that entries which would have
+	// expired in the meantime are dropped. A missing or unreadable snapshot
+	// leaves the group untouched.
+	static void load(BalanceeGroup group, Path file) {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAX_SNAPSHOT_BYTES) {
+				logger.warn("Ignoring balancee snapshot " + file + " of " + size + " bytes");
+				return;
+			}
+			buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// keep reading
+			}
+			buffer.flip();
+		} catch (NoSuchFileException nsfe) {
+			return;
+		} catch (IOException ioe) {
+			logger.warn("Could not read balancee snapshot " + file, ioe);
+			return;
+		}
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				logger.warn("Ignoring balancee snapshot " + file + " in an unknown format");
+				return;
+			}
+			long elapsed = Math.max(0, System.currentTimeMillis() - buffer.getLong());
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				byte[] encodedURI = new byte[buffer.getShort() & 0xffff];
+				buffer.get(encodedURI);
+				long ageMillis = buffer.getLong();
+				if (ageMillis < 0) {
+					continue;
+				}
+				ageMillis += elapsed;
+				if (ageMillis >= HealthContainer.UNHEALTHY_PERIOD_MILLIS) {
+					continue;
+				}
+				int index = group.indexOf(new URI(new String(encodedURI,
+						StandardCharsets.US_ASCII)));
+				if (index >= 0) {
+					group.markAsUnhealthy(index, ageMillis);
+				}
+			}
+		} catch (BufferUnderflowException bue) {
+			logger.warn("Ignoring truncated balancee snapshot " + file);
+		} catch (URISyntaxException use) {
+			logger.warn("Ignoring corrupt balancee snapshot " + file, use);
+		}
+	}
+}
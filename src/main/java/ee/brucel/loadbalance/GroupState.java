@@ -0,0 +1,32 @@
+package ee.brucel.loadbalance;
+
+// Per-member counters and health flags for a balancee group, indexed by
+// member ID. Implementations may keep this on the heap for a single process
+// or in shared memory so that several processes see the same load.
+interface GroupState {
+	int inFlight(int index);
+
+	// Only called with the group's lock held.
+	void incrementInFlight(int index);
+
+	void decrementInFlight(int index);
+
+	// Called with the group's lock held before each selection scan, for
+	// implementations that count releases apart from the scanned counts.
+	void foldReleases();
+
+	void markAsUnhealthy(int index);
+
+	// Marks the member as if it had been reported ageMillis ago.
+	void markAsUnhealthy(int index, long ageMillis);
+
+	// How long ago the member was reported unhealthy, or -1 if it is
+	// currently considered healthy.
+	long unhealthyAgeMillis(int index);
+
+	boolean isUnhealthy(int index);
+
+	// Called once the group has been replaced. Requests already out may
+	// still be released afterwards, but nothing more is acquired.
+	void close();
+}
@@ -1,34 +1,55 @@
 package ee.brucel.loadbalance;
 
-import java.net.URI;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+// Tracks which members of a balancee group have been reported unhealthy.
+// State is indexed by member ID (the position of the URI in the group's
+// sorted URI array) rather than keyed by URI, so that the selection scan
+// can test 64 members per word of the health bitset. Report times come
+// from the monotonic System.nanoTime clock, so wall clock adjustments
+// neither extend nor cut short an unhealthy period.
+// Not thread-safe on its own; callers hold the owning group's lock.
 class HealthContainer {
-	private long lastRefreshed = -1;
-	private Map<URI, Date> unhealthyItems = new HashMap<URI, Date>();
+	static final long UNHEALTHY_PERIOD_MILLIS = 30000;
+	private static final long UNHEALTHY_PERIOD_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(UNHEALTHY_PERIOD_MILLIS);
+	private final long[] unhealthyBits;
+	private final long[] unhealthySince;
 
-	public void markAsUnhealthy(URI unhealthyResource) {
-		removeStaleEntries();
-		unhealthyItems.put(unhealthyResource, new Date());
+	public HealthContainer(int size) {
+		unhealthyBits = new long[(size + 63) >>> 6];
+		unhealthySince = new long[size];
 	}
 
-	private void removeStaleEntries() {
-		long currTime = (new Date()).getTime();
-		if (currTime - lastRefreshed > 1000) {
-			for (Map.Entry<URI, Date> entry : unhealthyItems.entrySet()) {
-				if (currTime - entry.getValue().getTime()
-						+ (currTime - lastRefreshed) > 30000) {
-					unhealthyItems.remove(entry.getKey());
-				}
-			}
-			lastRefreshed = currTime;
+	public void markAsUnhealthy(int index) {
+		markAsUnhealthy(index, 0);
+	}
+
+	// Marks the resource as if it had been reported ageMillis ago.
+	public void markAsUnhealthy(int index, long ageMillis) {
+		unhealthyBits[index >>> 6] |= 1L << index;
+		unhealthySince[index] = System.nanoTime()
+				- TimeUnit.MILLISECONDS.toNanos(ageMillis);
+	}
+
+	// How long ago the resource was reported unhealthy, or -1 if it is
+	// currently considered healthy.
+	public long unhealthyAgeMillis(int index) {
+		if (!isUnhealthy(index)) {
+			return -1;
 		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - unhealthySince[index]);
 	}
 
-	public boolean isURIUnhealthy(URI resource) {
-		removeStaleEntries();
-		return unhealthyItems.keySet().contains(resource);
+	public boolean isUnhealthy(int index) {
+		if ((unhealthyBits[index >>> 6] & (1L << index)) == 0) {
+			return false;
+		}
+		if (System.nanoTime() - unhealthySince[index] >= UNHEALTHY_PERIOD_NANOS) {
+			// Stale entry; give the resource another chance.
+			unhealthyBits[index >>> 6] &= ~(1L << index);
+			return false;
+		}
+		return true;
 	}
 }
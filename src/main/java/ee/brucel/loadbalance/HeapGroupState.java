@@ -0,0 +1,97 @@
+package ee.brucel.loadbalance;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Process-local group state. Acquires happen under the group's lock and
+// releases do not, so the two sides are counted apart:
+//
+// - acquired counts are dense, sixteen members to a cache line, so that
+//   the selection scan stays cheap. Only the lock holder writes them.
+// - released counts get a cache line per member, so that lock-free
+//   releases of neighbouring members never contend for the same line.
+//   A release also sets the member's bit in a dirty bitset, unless it is
+//   already set, and foldReleases moves the released counts into the
+//   dense array under the lock before each scan.
+//
+// inFlight is the acquired count less any released count not yet folded,
+// which is only looked up for members whose dirty bit is set. Both arrays
+// are padded on both ends so that the hottest words never share a cache
+// line with an array header or whatever the allocator placed next to it.
+class HeapGroupState implements GroupState {
+	// Number of int slots in a 64 byte cache line.
+	private static final int PAD = 16;
+	// Number of long slots in a 64 byte cache line.
+	private static final int LONG_PAD = 8;
+
+	private final AtomicIntegerArray acquired;
+	private final AtomicIntegerArray released;
+	private final AtomicLongArray dirty;
+	private final HealthContainer health;
+
+	public HeapGroupState(int size) {
+		acquired = new AtomicIntegerArray(size + 2 * PAD);
+		released = new AtomicIntegerArray((size + 2) * PAD);
+		dirty = new AtomicLongArray(((size + 63) >>> 6) + 2 * LONG_PAD);
+		health = new HealthContainer(size);
+	}
+
+	public int inFlight(int index) {
+		// Checked before the released count, so a release is either seen
+		// whole or not at all; missing one only overstates the count.
+		if ((dirty.get((index >>> 6) + LONG_PAD) & (1L << index)) == 0) {
+			return acquired.get(index + PAD);
+		}
+		return acquired.get(index + PAD) - released.get((index + 1) * PAD);
+	}
+
+	// Only called with the group's lock held, so a plain write will do.
+	public void incrementInFlight(int index) {
+		acquired.lazySet(index + PAD, acquired.get(index + PAD) + 1);
+	}
+
+	public void decrementInFlight(int index) {
+		released.incrementAndGet((index + 1) * PAD);
+		int word = (index >>> 6) + LONG_PAD;
+		long bit = 1L << index;
+		if ((dirty.get(word) & bit) == 0) {
+			dirty.getAndAccumulate(word, bit, (bits, mask) -> bits | mask);
+		}
+	}
+
+	public void foldReleases() {
+		for (int word = 0; word < dirty.length() - 2 * LONG_PAD; word++) {
+			if (dirty.get(word + LONG_PAD) == 0) {
+				continue;
+			}
+			// Releases from here on set their bits again.
+			long bits = dirty.getAndSet(word + LONG_PAD, 0);
+			while (bits != 0) {
+				int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				int count = released.getAndSet((index + 1) * PAD, 0);
+				acquired.lazySet(index + PAD, acquired.get(index + PAD) - count);
+			}
+		}
+	}
+
+	public void markAsUnhealthy(int index) {
+		health.markAsUnhealthy(index);
+	}
+
+	public void markAsUnhealthy(int index, long ageMillis) {
+		health.markAsUnhealthy(index, ageMillis);
+	}
+
+	public long unhealthyAgeMillis(int index) {
+		return health.unhealthyAgeMillis(index);
+	}
+
+	public boolean isUnhealthy(int index) {
+		return health.isUnhealthy(index);
+	}
+
+	public void close() {
+		// Nothing outside the heap to give back.
+	}
+}
@@ -0,0 +1,102 @@
+package ee.brucel.loadbalance;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+// HTTP-GETs the sub-path given by the PATH parameter from the balancee and
+// returns the body of the response as a String. This is a built-in version
+// of the strategy shown in the README, meant to be used instead of opening
+// a new connection for every call.
+//
+// All balancees share one HttpClient, which keeps idle keep-alive
+// connections pooled per host. Each balancee also gets a Semaphore that
+// limits how many requests may be out to it at once, and therefore how many
+// connections the pool opens to it.
+//
+// Connection failures, timeouts and 5xx responses mean the balancee is
+// unhealthy. Other non-2xx responses mean the PATH was wrong.
+public class HttpGetStrategy implements ResourceWorkStrategy<String> {
+	public static final String PATH = "PATH";
+	// Requests out to each balancee at once unless told otherwise.
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_BALANCEE = 32;
+
+	private final HttpClient client;
+	private final Duration requestTimeout;
+	private final int maxConnectionsPerBalancee;
+	private final Map<URI, Semaphore> connectionPermits = new ConcurrentHashMap<URI, Semaphore>();
+
+	public HttpGetStrategy() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_BALANCEE, Duration.ofSeconds(5), Duration.ofSeconds(30));
+	}
+
+	public HttpGetStrategy(int maxConnectionsPerBalancee, Duration connectTimeout,
+			Duration requestTimeout) {
+		this.maxConnectionsPerBalancee = maxConnectionsPerBalancee;
+		this.requestTimeout = requestTimeout;
+		client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(connectTimeout)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.build();
+	}
+
+	public String processWork(URI uri, Map<String, Object> parameters)
+			throws ResourceUnhealthyException, IllegalArgumentException {
+		Object path = parameters == null ? null : parameters.get(PATH);
+		String attemptURL = uri.toASCIIString() + (path == null ? "" : path);
+		HttpRequest request;
+		try {
+			request = HttpRequest.newBuilder(URI.create(attemptURL))
+					.timeout(requestTimeout)
+					.GET()
+					.build();
+		} catch (IllegalArgumentException iae) {
+			throw new IllegalArgumentException(attemptURL, iae);
+		}
+
+		Semaphore permits = permitsFor(uri);
+		try {
+			permits.acquire();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for a connection to " + uri, ie);
+		}
+		try {
+			HttpResponse<String> response = client.send(request,
+					HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+			int status = response.statusCode();
+			if (status >= 500) {
+				throw new ResourceUnhealthyException("There was an issue getting data from "
+						+ attemptURL + ": HTTP " + status);
+			}
+			if (status >= 300) {
+				throw new IllegalArgumentException(attemptURL + ": HTTP " + status);
+			}
+			return response.body();
+		} catch (IOException ioe) {
+			throw new ResourceUnhealthyException("There was an issue getting data from " + attemptURL, ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted getting data from " + attemptURL, ie);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private Semaphore permitsFor(URI uri) {
+		Semaphore permits = connectionPermits.get(uri);
+		if (permits == null) {
+			connectionPermits.putIfAbsent(uri, new Semaphore(maxConnectionsPerBalancee));
+			permits = connectionPermits.get(uri);
+		}
+		return permits;
+	}
+}
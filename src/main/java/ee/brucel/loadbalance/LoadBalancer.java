@@ -1,53 +1,139 @@
 package ee.brucel.loadbalance;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
 public class LoadBalancer {
 	private static final Logger logger = Logger.getLogger(LoadBalancer.class);
-	private static Map<String, SortedSet<LoadBalancee>> balanceeGroups = new ConcurrentHashMap<String, SortedSet<LoadBalancee>>();
-	private static Map<String, HealthContainer> unhealthyURIs = new ConcurrentHashMap<String, HealthContainer>();
-	private static Map<String, URI[]> sortedURIs = new ConcurrentHashMap<String, URI[]>();
+	private static Map<String, BalanceeGroup> balanceeGroups = new ConcurrentHashMap<String, BalanceeGroup>();
+	private static Map<String, Integer> sessionAffinityLimits = new ConcurrentHashMap<String, Integer>();
+	private static ScheduledExecutorService snapshotScheduler = null;
+	// Items of a doWorkOnAllBalancees batch that are run on each balancee at
+	// once unless told otherwise.
+	public static final int BATCH_CONCURRENCY_PER_BALANCEE = 8;
 
 	public static <T> T doWorkOnBestBalancee(String key, ResourceWorkStrategy<T> strategy, Map<String, Object> parameters){
-		URI bestResource = getBestResource(key);
-		boolean workPerformed = false;
-		T returnValue = null;
-		int attemptCount = 0;
-		while (!workPerformed){
-			boolean unhealthy = false;
+		return doWorkOnBestBalancee(key,
+				(ContextWorkStrategy<Map<String, Object>, T>) strategy, parameters);
+	}
+
+	// Performs the work on the least burdened balancee, moving on to the next
+	// best balancee whenever the strategy reports the current one unhealthy.
+	// When the work succeeds first time, nothing on this path allocates.
+	public static <C, T> T doWorkOnBestBalancee(String key, ContextWorkStrategy<C, T> strategy, C context){
+		return doWorkOnBestBalancee(key, strategy, context, Integer.MAX_VALUE, false);
+	}
+
+	// As above, but never gives a balancee more than limitPerBalancee
+	// requests at once, waiting for one to finish if need be. Rather than
+	// retrying forever, gives up once it is handed a balancee that has
+	// already failed this work, which happens when every member has been
+	// tried or the rest are unhealthy too. The last ResourceUnhealthyException
+	// is then thrown wrapped in an IllegalStateException.
+	static <C, T> T doWorkOnBestBalancee(String key, ContextWorkStrategy<C, T> strategy, C context,
+			int limitPerBalancee){
+		return doWorkOnBestBalancee(key, strategy, context, limitPerBalancee, true);
+	}
+
+	private static <C, T> T doWorkOnBestBalancee(String key, ContextWorkStrategy<C, T> strategy, C context,
+			int limitPerBalancee, boolean bounded){
+		BalanceeGroup balancees = balanceeGroups.get(key);
+		int attempt = 0;
+		// Members that have failed this work; only needed once one has.
+		long[] failed = null;
+		ResourceUnhealthyException lastFailure = null;
+		while (true){
+			attempt++;
+			int index = balancees == null ? -1 : balancees.acquireBest(limitPerBalancee);
+			URI bestResource = index < 0 ? null : balancees.getResource(index);
+			if (lastFailure != null && (index < 0 || (failed[index >>> 6] & (1L << index)) != 0)){
+				if (index >= 0){
+					balancees.release(index);
+				}
+				throw new IllegalStateException("Every balancee tried for key " + key
+						+ " was unhealthy", lastFailure);
+			}
+			long acquired = EventDispatcher.isEnabled() ? System.nanoTime() : 0;
 			try{
-				returnValue = strategy.processWork(bestResource, parameters);
+				return strategy.processWork(bestResource, context);
 			}catch(ResourceUnhealthyException rue){
-				unhealthy = true;
+				if (index >= 0){
+					markUnhealthy(balancees, index);
+					if (EventDispatcher.isEnabled()){
+						EventDispatcher.publish(LoadBalancerEvent.Type.RETRIED, key,
+								bestResource, System.nanoTime(), 0, 0, 0, 0, attempt);
+					}
+				}
+				if (bounded){
+					if (failed == null){
+						failed = new long[balancees == null ? 1 : (balancees.size() + 63) >>> 6];
+					}
+					if (index >= 0){
+						failed[index >>> 6] |= 1L << index;
+					}
+					lastFailure = rue;
+				}
 			}finally{
-				returnResource(key, bestResource);
-			}
-			if (unhealthy){
-				reportUnhealthy(key, bestResource);
-				continue;
-			}else{
-				workPerformed = true;
+				if (index >= 0){
+					balancees.release(index, acquired == 0 ? -1 : System.nanoTime() - acquired);
+				}
 			}
-			bestResource = getBestResource(key);
 		}
-		return returnValue;
+	}
+
+	public static <T> List<T> doWorkOnAllBalancees(String key, ResourceWorkStrategy<T> strategy,
+			List<? extends Map<String, Object>> parameterSets) {
+		return doWorkOnAllBalancees(key,
+				(ContextWorkStrategy<Map<String, Object>, T>) strategy, parameterSets,
+				BATCH_CONCURRENCY_PER_BALANCEE);
+	}
+
+	public static <C, T> List<T> doWorkOnAllBalancees(String key, ContextWorkStrategy<C, T> strategy,
+			List<? extends C> contexts) {
+		return doWorkOnAllBalancees(key, strategy, contexts, BATCH_CONCURRENCY_PER_BALANCEE);
+	}
+
+	// Performs the work once for every context, in parallel across the whole
+	// group. No balancee is given more than concurrencyPerBalancee requests
+	// at once, counting those from other batches and callers. Each item is
+	// done as by doWorkOnBestBalancee, so items that fail on an unhealthy
+	// balancee are retried on others, but an item that every balancee has
+	// failed fails the batch with an IllegalStateException. Returns the
+	// results in the order of the contexts. If the strategy throws anything
+	// else, no further items are started, and the exception is thrown from
+	// here once the items already started have finished.
+	public static <C, T> List<T> doWorkOnAllBalancees(String key, ContextWorkStrategy<C, T> strategy,
+			List<? extends C> contexts, int concurrencyPerBalancee) {
+		return BatchWork.perform(key, strategy, contexts, concurrencyPerBalancee);
 	}
 
 	public static <T> T doWorkOnStickyBalancee(String key, 
 		ResourceWorkStrategy<T> strategy, Map<String, Object> parameters,
 		StickySessionStrategy stickyStrategy, String stickySessionIdentifier) throws ResourceUnhealthyException {
+		return doWorkOnStickyBalancee(key,
+				(ContextWorkStrategy<Map<String, Object>, T>) strategy, parameters,
+				stickyStrategy, stickySessionIdentifier);
+	}
+
+	public static <C, T> T doWorkOnStickyBalancee(String key, 
+		ContextWorkStrategy<C, T> strategy, C context,
+		StickySessionStrategy stickyStrategy, String stickySessionIdentifier) throws ResourceUnhealthyException {
 		URI stickyResource = getStickyURI(key, stickySessionIdentifier,
 			stickyStrategy);
 		T returnValue = null;
 		try{
-			returnValue = strategy.processWork(stickyResource, parameters);
+			returnValue = strategy.processWork(stickyResource, context);
 		}catch(ResourceUnhealthyException rue){
 			logger.info(rue);
 			reportUnhealthy(key, stickyResource);
@@ -59,43 +145,15 @@ public class LoadBalancer {
 	}
 
 	protected static URI getBestResource(String key) {
-		SortedSet<LoadBalancee> balancees = balanceeGroups.get(key);
+		BalanceeGroup balancees = balanceeGroups.get(key);
 		if (balancees == null) {
 			return null;
 		}
-		URI resource = null;
-		synchronized (balancees) {
-			HealthContainer unhealthyInThisGroup = unhealthyURIs.get(key);
-			if (unhealthyInThisGroup == null) {
-				unhealthyInThisGroup = new HealthContainer();
-				unhealthyURIs.put(key, unhealthyInThisGroup);
-			}
-			if (balancees.last().availablePermits() == 0) {
-				// need to add to permits.
-				addPermits(key);
-			}
-			LoadBalancee candidate = null;
-			for (LoadBalancee balancee : balancees) {
-				if (unhealthyInThisGroup.isURIUnhealthy(balancee.getResource())) {
-					continue;
-				} else {
-					candidate = balancee;
-					break;
-				}
-			}
-
-			if (candidate == null) {
-				// if all are unhealthy, then let's return the one which was
-				// least burdened. Consumer should handle that all servers.
-				// are down.
-				candidate = balancees.first();
-			}
-			balancees.remove(candidate);
-			resource = candidate.acquirePermit();
-			balancees.add(candidate);
+		int index = balancees.acquireBest();
+		if (index < 0) {
+			return null;
 		}
-		return resource;
-
+		return balancees.getResource(index);
 	}
 
 	//Returns a URI based on the balancee group, the sticky session identifier,
@@ -104,116 +162,184 @@ public class LoadBalancer {
 	//Note: This does not do any checks against the health. There is an 
 	//assumption that the consumer would rather have a URI that does not work
 	//rather than non-sticky [inconsistent] behavior based on server health.
+	//If session affinity has been enabled for the group, the session table
+	//is consulted instead, which does fail over unhealthy resources.
 	protected static URI getStickyURI(String key, String stickySessionIdentifier,
 			StickySessionStrategy strategy) {
-		URI uri = strategy.giveURIByStrategy(stickySessionIdentifier,
-				sortedURIs.get(key));
-		SortedSet<LoadBalancee> balancees = balanceeGroups.get(key);
+		BalanceeGroup balancees = balanceeGroups.get(key);
 		if (balancees == null) {
 			return null;
 		}
-		synchronized (balancees) {
-			boolean requiresPermits = false;
-			LoadBalancee stuckServer = null;
-			for (LoadBalancee balancee : balancees) {
-				if (balancee.getResource().equals(uri)) {
-					stuckServer = balancee;
-					if (balancee.availablePermits() == 0) {
-						requiresPermits = true;
-					}
-					break;
-				}
-			}
-			if (requiresPermits) {
-				addPermits(key);
-			}
-			balancees.remove(stuckServer);
-			stuckServer.acquirePermit();
-			balancees.add(stuckServer);
+		SessionAffinityTable affinity = balancees.getSessionAffinity();
+		if (affinity != null) {
+			return affinity.acquire(balancees, stickySessionIdentifier, strategy);
+		}
+		URI uri = strategy.giveURIByStrategy(stickySessionIdentifier,
+				balancees.getSortedURIs());
+		int index = balancees.indexOf(uri);
+		if (index >= 0) {
+			balancees.acquireSpecific(index);
 		}
 		return uri;
 	}
 
 	protected static void reportUnhealthy(String key, URI resource) {
-		SortedSet<LoadBalancee> balancees = balanceeGroups.get(key);
+		BalanceeGroup balancees = balanceeGroups.get(key);
 		if (balancees == null) {
 			return;
 		}
-		logger.warn(resource + " marked as unhealthy by LoadBalancer consumer");
-		synchronized (balancees) {
-			for (LoadBalancee balancee : balancees) {
-				if (balancee.getResource().equals(resource)) {
-					HealthContainer unhealthyInThisGroup = unhealthyURIs
-							.get(key);
-					if (unhealthyInThisGroup == null) {
-						unhealthyInThisGroup = new HealthContainer();
-						unhealthyURIs.put(key, unhealthyInThisGroup);
-					}
-					unhealthyInThisGroup.markAsUnhealthy(resource);
-					break;
-				}
-			}
+		int index = balancees.indexOf(resource);
+		if (index >= 0) {
+			markUnhealthy(balancees, index);
 		}
 	}
 
+	private static void markUnhealthy(BalanceeGroup balancees, int index) {
+		logger.warn(balancees.getResource(index) + " marked as unhealthy by LoadBalancer consumer");
+		balancees.markAsUnhealthy(index);
+	}
+
 	protected static void returnResource(String key, URI resource) {
-		SortedSet<LoadBalancee> balancees = balanceeGroups.get(key);
+		BalanceeGroup balancees = balanceeGroups.get(key);
 		if (balancees == null) {
 			return;
 		}
-		synchronized (balancees) {
-			for (LoadBalancee balancee : balancees) {
-				if (balancee.getResource().equals(resource)) {
-					// need to remove and add so that the sorting of the
-					// SortedSet is preserved.
-					balancees.remove(balancee);
-					balancee.releasePermit();
-					balancees.add(balancee);
-					break;
-				}
-			}
+		int index = balancees.indexOf(resource);
+		if (index >= 0) {
+			balancees.release(index);
 		}
 	}
 
 	public static void initializeGroup(List<URI> initialItems, String key) {
-		SortedSet<LoadBalancee> loadBalancees = new TreeSet<LoadBalancee>();
-		for (URI uri : initialItems) {
-			LoadBalancee balancee = new LoadBalancee(uri);
-			loadBalancees.add(balancee);
-		}
-		balanceeGroups.put(key, loadBalancees);
-		URI[] sortedURIsValue = new URI[loadBalancees.size()];
-		// Take advantage of the fact that loadBalancees should be sorted
-		// alphabetically at this point
-		int i = 0;
-		for (LoadBalancee balancee : loadBalancees) {
-			sortedURIsValue[i++] = balancee.getResource();
-		}
-		sortedURIs.put(key, sortedURIsValue);
-		//Clear unhealthy URIs
-		unhealthyURIs.remove(key);
-	}
-
-	private static void addPermits(String key) {
-
-		SortedSet<LoadBalancee> balancees = balanceeGroups.get(key);
-		synchronized (balancees) {
-			// need to add to all. Also need to warn that
-			// there is likely a consumer that is 'leaking'
-			// balancees.
-			logger.warn("A consumer is likely leaking balancees for key " + key
-					+ ". Re-adding to permits.");
-			for (LoadBalancee balancee : balancees) {
-				// Add 1000 permits back to each semaphore.
-				// Fairness is still preserved as each balancee
-				// is consistently added to.
-				balancee.addBackPermits();
+		// Members are sorted alphabetically and deduplicated by the group;
+		// a fresh group also starts with every member healthy.
+		putGroup(key, new BalanceeGroup(key, initialItems));
+	}
+
+	// Like initializeGroup, but for very large groups: this client only
+	// balances over a subset of about subsetSize of the URIs, chosen
+	// deterministically from clientId (0 to clientCount - 1) so that all
+	// clients together spread evenly over every URI. Re-initializing after a
+	// membership change moves each client's subset by as little as possible.
+	// Sticky strategies only see the subset.
+	public static void initializeSubsetGroup(List<URI> initialItems, String key,
+			int subsetSize, int clientId, int clientCount) {
+		initializeGroup(Aperture.subset(initialItems, subsetSize, clientId, clientCount), key);
+	}
+
+	// Like initializeGroup, but warm-starts the group from a snapshot written
+	// by writeSnapshot or scheduleSnapshots, typically by the previous
+	// instance of this process. A missing or unreadable snapshot is ignored.
+	public static void initializeGroup(List<URI> initialItems, String key,
+			Path snapshotFile) {
+		BalanceeGroup balancees = new BalanceeGroup(key, initialItems);
+		GroupSnapshot.load(balancees, snapshotFile);
+		putGroup(key, balancees);
+	}
+
+	public static void writeSnapshot(String key, Path snapshotFile) throws IOException {
+		BalanceeGroup balancees = balanceeGroups.get(key);
+		if (balancees == null) {
+			return;
+		}
+		GroupSnapshot.write(balancees, snapshotFile);
+	}
+
+	// Writes a snapshot of the group every periodMillis on a background
+	// thread. Cancel the returned future to stop.
+	public static ScheduledFuture<?> scheduleSnapshots(final String key,
+			final Path snapshotFile, long periodMillis) {
+		return snapshotScheduler().scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					writeSnapshot(key, snapshotFile);
+				} catch (IOException ioe) {
+					logger.warn("Could not write balancee snapshot " + snapshotFile, ioe);
+				}
 			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledExecutorService snapshotScheduler() {
+		if (snapshotScheduler == null) {
+			snapshotScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "loadbalance-snapshot");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
+		return snapshotScheduler;
+	}
+
+	// Like initializeGroup, but keeps the group's in-flight counters and
+	// health flags in a memory-mapped file. Processes on the same host that
+	// initialize a group with the same URIs and state file will balance as
+	// if they shared a single LoadBalancer.
+	public static void initializeSharedGroup(List<URI> initialItems, String key,
+			Path stateFile) throws IOException {
+		URI[] sortedURIsValue = BalanceeGroup.sortURIs(initialItems);
+		GroupState state = SharedGroupState.open(stateFile, sortedURIsValue);
+		putGroup(key, new BalanceeGroup(key, sortedURIsValue, state));
+	}
+
+	// Remembers which balancee each sticky session was sent to, for up to
+	// maxSessions sessions, so that the StickySessionStrategy is only asked
+	// once per session. Sessions whose balancee is reported unhealthy are
+	// moved to a healthy one until the original recovers. The setting
+	// survives re-initialization of the group, but the sessions do not.
+	public static void enableSessionAffinity(String key, int maxSessions) {
+		sessionAffinityLimits.put(key, maxSessions);
+		BalanceeGroup balancees = balanceeGroups.get(key);
+		if (balancees != null) {
+			balancees.setSessionAffinity(new SessionAffinityTable(maxSessions));
+		}
+	}
+
+	public static void disableSessionAffinity(String key) {
+		sessionAffinityLimits.remove(key);
+		BalanceeGroup balancees = balanceeGroups.get(key);
+		if (balancees != null) {
+			balancees.setSessionAffinity(null);
+		}
+	}
+
+	private static void putGroup(String key, BalanceeGroup balancees) {
+		Integer maxSessions = sessionAffinityLimits.get(key);
+		if (maxSessions != null) {
+			balancees.setSessionAffinity(new SessionAffinityTable(maxSessions));
+		}
+		BalanceeGroup replaced = balanceeGroups.put(key, balancees);
+		if (replaced != null) {
+			// Shared state keeps its slot in the state file until the
+			// requests still out on the old group have been released.
+			replaced.close();
+		}
+	}
+
+	// Registers a listener for events about balancee selection, release,
+	// health and retries. Listeners run on a background thread.
+	public static void addListener(LoadBalancerListener listener) {
+		EventDispatcher.addListener(listener);
+	}
+
+	public static void removeListener(LoadBalancerListener listener) {
+		EventDispatcher.removeListener(listener);
+	}
+
+	// Events dropped because listeners could not keep up.
+	public static long getDroppedEventCount() {
+		return EventDispatcher.getDroppedCount();
+	}
+
+	static BalanceeGroup getGroup(String key) {
+		return balanceeGroups.get(key);
 	}
 
 	static void setupTest(List<URI> initialItems, String key) {
-		balanceeGroups = new ConcurrentHashMap<String, SortedSet<LoadBalancee>>();
+		balanceeGroups = new ConcurrentHashMap<String, BalanceeGroup>();
+		sessionAffinityLimits = new ConcurrentHashMap<String, Integer>();
 		initializeGroup(initialItems, key);
 	}
 }
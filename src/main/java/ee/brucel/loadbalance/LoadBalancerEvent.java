@@ -0,0 +1,94 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+
+// Something the LoadBalancer did. Instances are slots of the event ring
+// buffer and are filled in place, so publishing an event allocates nothing.
+// Times are System.nanoTime values.
+public class LoadBalancerEvent {
+	public enum Type {
+		// A balancee was chosen. getCandidates is how many balancees were
+		// considered, getSkippedUnhealthy how many of those would have been
+		// chosen had they not been unhealthy, getWaitNanos the time spent
+		// waiting for the group's lock and getDurationNanos the time spent
+		// holding it.
+		SELECTED,
+		// A balancee was returned. getDurationNanos is how long it was held,
+		// or -1 if not known.
+		RELEASED,
+		// A balancee was reported unhealthy.
+		MARKED_UNHEALTHY,
+		// A balancee that had been reported unhealthy is considered again.
+		RECOVERED,
+		// Work failed on a balancee and is being retried on another.
+		// getAttempt is the number of the attempt that failed, from 1.
+		RETRIED
+	}
+
+	private Type type;
+	private String key;
+	private URI resource;
+	private long timeNanos;
+	private long waitNanos;
+	private long durationNanos;
+	private int candidates;
+	private int skippedUnhealthy;
+	private int attempt;
+
+	LoadBalancerEvent() {
+	}
+
+	void set(Type type, String key, URI resource, long timeNanos, long waitNanos,
+			long durationNanos, int candidates, int skippedUnhealthy, int attempt) {
+		this.type = type;
+		this.key = key;
+		this.resource = resource;
+		this.timeNanos = timeNanos;
+		this.waitNanos = waitNanos;
+		this.durationNanos = durationNanos;
+		this.candidates = candidates;
+		this.skippedUnhealthy = skippedUnhealthy;
+		this.attempt = attempt;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public URI getResource() {
+		return resource;
+	}
+
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	public int getCandidates() {
+		return candidates;
+	}
+
+	public int getSkippedUnhealthy() {
+		return skippedUnhealthy;
+	}
+
+	public int getAttempt() {
+		return attempt;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + key + " " + resource;
+	}
+}
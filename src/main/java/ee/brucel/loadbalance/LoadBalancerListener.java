@@ -0,0 +1,11 @@
+package ee.brucel.loadbalance;
+
+// Receives events about the LoadBalancer's decisions. Listeners are called
+// on a single background thread, never on the thread doing the work, so a
+// slow listener costs no latency; if listeners fall far enough behind,
+// events are dropped instead (see LoadBalancer.getDroppedEventCount).
+public interface LoadBalancerListener {
+	// The event object is reused once this returns, so copy anything that
+	// is needed later.
+	void onEvent(LoadBalancerEvent event);
+}
@@ -3,6 +3,6 @@ package ee.brucel.loadbalance;
 import java.net.URI;
 import java.util.Map;
 
-public interface ResourceWorkStrategy<T> {
+public interface ResourceWorkStrategy<T> extends ContextWorkStrategy<Map<String, Object>, T> {
 	T processWork(URI uri, Map<String, Object> parameters) throws ResourceUnhealthyException, IllegalArgumentException;
-}
\ No newline at end of file
+}
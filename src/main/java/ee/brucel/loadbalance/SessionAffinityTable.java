@@ -0,0 +1,133 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded map from sticky session identifier to the member serving that
+// session. It remembers what the StickySessionStrategy chose, so the
+// strategy only runs the first time a session is seen. If that member is
+// reported unhealthy, the session is moved to the least burdened healthy
+// member. It stays there until the member chosen by the strategy recovers,
+// and then moves back. Should that member fail again, the session returns
+// to the same fallback member as long as it is still healthy.
+//
+// The map is split into stripes, each a synchronized access-ordered
+// LinkedHashMap. The bound is shared out between the stripes, so together
+// they never hold more than maxSessions, and a stripe evicts its least
+// recently used session when it grows past its share. Small tables get
+// fewer stripes, so that every stripe can hold at least one session.
+class SessionAffinityTable {
+	private static final int STRIPES = 16;
+	private final Stripe[] stripes;
+
+	public SessionAffinityTable(int maxSessions) {
+		// A power of two, for stripeFor.
+		int count = Integer.highestOneBit(Math.max(1, Math.min(STRIPES, maxSessions)));
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			int share = maxSessions / count + (i < maxSessions % count ? 1 : 0);
+			stripes[i] = new Stripe(Math.max(1, share));
+		}
+	}
+
+	// Returns the URI for the session, taking a permit on it if it is a
+	// member of the group. Sessions without an identifier, and strategies
+	// returning URIs outside the group, are passed through uncached.
+	public URI acquire(BalanceeGroup group, String stickySessionIdentifier,
+			StickySessionStrategy strategy) {
+		if (stickySessionIdentifier == null) {
+			return acquireUncached(group, stickySessionIdentifier, strategy);
+		}
+		Stripe stripe = stripeFor(stickySessionIdentifier);
+		Binding binding;
+		synchronized (stripe) {
+			binding = stripe.get(stickySessionIdentifier);
+		}
+		if (binding == null) {
+			URI uri = strategy.giveURIByStrategy(stickySessionIdentifier,
+					group.getSortedURIs());
+			int preferred = group.indexOf(uri);
+			if (preferred < 0) {
+				return uri;
+			}
+			synchronized (stripe) {
+				binding = stripe.get(stickySessionIdentifier);
+				if (binding == null) {
+					binding = new Binding(preferred);
+					stripe.put(stickySessionIdentifier, binding);
+				}
+			}
+		}
+		return group.getResource(binding.acquire(group));
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	private static URI acquireUncached(BalanceeGroup group,
+			String stickySessionIdentifier, StickySessionStrategy strategy) {
+		URI uri = strategy.giveURIByStrategy(stickySessionIdentifier,
+				group.getSortedURIs());
+		int index = group.indexOf(uri);
+		if (index >= 0) {
+			group.acquireSpecific(index);
+		}
+		return uri;
+	}
+
+	private Stripe stripeFor(String stickySessionIdentifier) {
+		int hash = stickySessionIdentifier.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+	}
+
+	private static class Binding {
+		private final int preferred;
+		// Where the session goes while preferred is unhealthy, or -1 if it
+		// has not needed to go anywhere yet. Kept after a move back, so that
+		// a preferred member that recovers only on paper sends the session
+		// to the same place again.
+		private int fallback = -1;
+
+		Binding(int preferred) {
+			this.preferred = preferred;
+		}
+
+		synchronized int acquire(BalanceeGroup group) {
+			if (!group.isUnhealthy(preferred)) {
+				// Either never failed, or has recovered; go back home.
+				group.acquireSpecific(preferred);
+				return preferred;
+			}
+			if (fallback < 0 || fallback == preferred || group.isUnhealthy(fallback)) {
+				// acquireBest already takes the permit.
+				fallback = group.acquireBest();
+				return fallback;
+			}
+			group.acquireSpecific(fallback);
+			return fallback;
+		}
+	}
+
+	private static class Stripe extends LinkedHashMap<String, Binding> {
+		private static final long serialVersionUID = 1L;
+		private final int maxSessions;
+
+		Stripe(int maxSessions) {
+			super(16, 0.75f, true);
+			this.maxSessions = maxSessions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Binding> eldest) {
+			return size() > maxSessions;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package ee.brucel.loadbalance;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.URI;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+// Group state kept in a memory-mapped file so that several processes on the
+// same host, balancing over the same URIs, share one view of how many
+// requests are out to each member and which members are unhealthy.
+//
+// Layout (native byte order):
+//   0   int   magic
+//   4   int   version
+//   8   int   member count
+//   16  long  fingerprint of the sorted URIs
+//   64  int[member][SLOTS] in-flight count per member, one column per
+//              process, so each member's counts fill one 64 byte line
+//   ..  long[] unhealthy-since wall clock millis per member (0 if healthy),
+//              starting on the next 64 byte boundary
+//
+// All updates are atomic VarHandle operations on the mapped buffer, so no
+// lock is shared between processes while balancing. Health timestamps use
+// the wall clock because System.nanoTime is not guaranteed to be comparable
+// across JVMs.
+//
+// Each process only ever counts its own requests, in the column (slot) it
+// claimed when it opened the file, and a member's in-flight count is the
+// sum of its row. A process holds a lock on the byte at LOCK_SLOTS + slot
+// for as long as it lives; the operating system drops the lock when the
+// process dies, however it dies. Whenever the file is opened, every slot
+// whose lock can be taken belongs to no live process, so its counts are
+// left over from a dead one and are cleared.
+class SharedGroupState implements GroupState {
+	private static final Logger logger = Logger.getLogger(SharedGroupState.class);
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(
+			int[].class, ByteOrder.nativeOrder());
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(
+			long[].class, ByteOrder.nativeOrder());
+	private static final int MAGIC = 0x4C42534D;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 64;
+	// Processes that can share one file at once.
+	static final int SLOTS = 16;
+	// File lock positions. These only stand for the initialisation and the
+	// slots; locks are advisory and do not stop the mapped data being used.
+	private static final long LOCK_INITIALIZE = 0;
+	private static final long LOCK_SLOTS = 1;
+	// One channel per file while any group in this process uses it: closing
+	// any channel onto a file may release all of this process's locks on it.
+	// Keyed by file identity rather than path, so that a file which has been
+	// removed and created again gets a channel of its own.
+	private static final Map<Object, SharedFile> files = new HashMap<Object, SharedFile>();
+
+	private final SharedFile file;
+	private final MappedByteBuffer buffer;
+	private final int healthOffset;
+	private final int slot;
+	private final FileLock slotLock;
+	// Requests this process has out through the slot, and whether the slot
+	// is given back once they have all been released.
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+	private volatile boolean closing = false;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	private SharedGroupState(SharedFile file, MappedByteBuffer buffer, int size, int slot,
+			FileLock slotLock) {
+		this.file = file;
+		this.buffer = buffer;
+		this.healthOffset = healthOffset(size);
+		this.slot = slot;
+		this.slotLock = slotLock;
+	}
+
+	// Maps the state file for the given members, creating it if it is new or
+	// does not hold balancee state. A file that holds state for a different
+	// membership is refused rather than reset: other processes may still
+	// have it mapped, and would go on using their member IDs against the new
+	// layout. Initialisation is done under an exclusive file lock so that
+	// processes starting at the same time agree on the contents.
+	static synchronized SharedGroupState open(Path path, URI[] sortedURIs) throws IOException {
+		int size = sortedURIs.length;
+		long fingerprint = fingerprint(sortedURIs);
+		int length = healthOffset(size) + 8 * size;
+		SharedFile file = SharedFile.open(path);
+		FileChannel channel = file.channel;
+		FileLock claimedLock = null;
+		boolean opened = false;
+		FileLock lock;
+		try {
+			lock = channel.lock(LOCK_INITIALIZE, 1, false);
+		} catch (IOException ioe) {
+			file.close();
+			throw ioe;
+		}
+		try {
+			if (channel.size() >= HEADER_SIZE) {
+				MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+				if ((int) INT.getVolatile(header, 0) == MAGIC
+						&& ((int) INT.getVolatile(header, 4) != VERSION
+						|| (int) INT.getVolatile(header, 8) != size
+						|| (long) LONG.getVolatile(header, 16) != fingerprint)) {
+					throw new IOException(path + " holds balancee state in another format or for"
+							+ " a different list of URIs; remove it or use another file");
+				}
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			if ((int) INT.getVolatile(buffer, 0) != MAGIC) {
+				logger.info("Initializing shared balancee state in " + path);
+				for (int offset = HEADER_SIZE; offset < length; offset += 4) {
+					INT.setVolatile(buffer, offset, 0);
+				}
+				INT.setVolatile(buffer, 4, VERSION);
+				INT.setVolatile(buffer, 8, size);
+				LONG.setVolatile(buffer, 16, fingerprint);
+				// Written last, so a half-initialised file is never accepted.
+				INT.setVolatile(buffer, 0, MAGIC);
+				buffer.force();
+			}
+			int claimed = -1;
+			for (int candidate = 0; candidate < SLOTS; candidate++) {
+				FileLock slotLock;
+				try {
+					slotLock = channel.tryLock(LOCK_SLOTS + candidate, 1, false);
+				} catch (OverlappingFileLockException ofle) {
+					// Held by another group in this process.
+					continue;
+				}
+				if (slotLock == null) {
+					// Held by another live process.
+					continue;
+				}
+				if (clearSlot(buffer, size, candidate)) {
+					logger.warn("Cleared requests left in flight by a process that died using " + path);
+				}
+				if (claimed < 0) {
+					claimed = candidate;
+					claimedLock = slotLock;
+				} else {
+					slotLock.release();
+				}
+			}
+			if (claimed < 0) {
+				throw new IOException(path + " is already in use by " + SLOTS + " processes");
+			}
+			SharedGroupState state = new SharedGroupState(file, buffer, size, claimed, claimedLock);
+			opened = true;
+			return state;
+		} finally {
+			lock.release();
+			if (!opened) {
+				// Give back whatever a failed open took.
+				if (claimedLock != null) {
+					claimedLock.release();
+				}
+				file.close();
+			}
+		}
+	}
+
+	// Gives the slot back once every request this process has out through
+	// it has been released, and lets go of the file once no group in this
+	// process uses it. The state must not be used to acquire any more.
+	public void close() {
+		closing = true;
+		if (outstanding.get() == 0) {
+			releaseSlot();
+		}
+	}
+
+	private void releaseSlot() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		synchronized (SharedGroupState.class) {
+			try {
+				slotLock.release();
+			} catch (IOException ioe) {
+				logger.warn("Could not release shared balancee state slot " + slot, ioe);
+			}
+			file.close();
+		}
+	}
+
+	// Returns whether anything was left in the slot.
+	private static boolean clearSlot(MappedByteBuffer buffer, int size, int slot) {
+		boolean leftover = false;
+		for (int index = 0; index < size; index++) {
+			int offset = inFlightOffset(index, slot);
+			if ((int) INT.getAndSet(buffer, offset, 0) != 0) {
+				leftover = true;
+			}
+		}
+		return leftover;
+	}
+
+	public int inFlight(int index) {
+		int total = 0;
+		int offset = inFlightOffset(index, 0);
+		for (int i = 0; i < SLOTS; i++) {
+			total += (int) INT.getVolatile(buffer, offset + 4 * i);
+		}
+		return total;
+	}
+
+	public void incrementInFlight(int index) {
+		outstanding.incrementAndGet();
+		INT.getAndAdd(buffer, inFlightOffset(index, slot), 1);
+	}
+
+	public void decrementInFlight(int index) {
+		INT.getAndAdd(buffer, inFlightOffset(index, slot), -1);
+		if (outstanding.decrementAndGet() == 0 && closing) {
+			releaseSlot();
+		}
+	}
+
+	public void foldReleases() {
+		// Releases go straight into this process's slot.
+	}
+
+	// Lets go of this process's slot without clearing it, leaving its counts
+	// behind as a process that is killed does. Only for tests.
+	void abandon() throws IOException {
+		slotLock.release();
+	}
+
+	public void markAsUnhealthy(int index) {
+		markAsUnhealthy(index, 0);
+	}
+
+	public void markAsUnhealthy(int index, long ageMillis) {
+		LONG.setVolatile(buffer, healthOffset + 8 * index,
+				System.currentTimeMillis() - ageMillis);
+	}
+
+	public long unhealthyAgeMillis(int index) {
+		long since = (long) LONG.getVolatile(buffer, healthOffset + 8 * index);
+		long age = System.currentTimeMillis() - since;
+		if (since == 0 || age >= HealthContainer.UNHEALTHY_PERIOD_MILLIS) {
+			return -1;
+		}
+		return age;
+	}
+
+	public boolean isUnhealthy(int index) {
+		int offset = healthOffset + 8 * index;
+		long since = (long) LONG.getVolatile(buffer, offset);
+		if (since == 0) {
+			return false;
+		}
+		if (System.currentTimeMillis() - since >= HealthContainer.UNHEALTHY_PERIOD_MILLIS) {
+			// Stale entry; clear it unless another process re-marked it.
+			LONG.compareAndSet(buffer, offset, since, 0L);
+			return false;
+		}
+		return true;
+	}
+
+	private static int inFlightOffset(int index, int slot) {
+		return HEADER_SIZE + 4 * (SLOTS * index + slot);
+	}
+
+	private static int healthOffset(int size) {
+		return HEADER_SIZE + 4 * SLOTS * size;
+	}
+
+	// 64 bit FNV-1a over the URIs, so that processes configured with a
+	// different membership never interpret each other's member IDs.
+	private static long fingerprint(URI[] sortedURIs) {
+		long hash = 0xcbf29ce484222325L;
+		for (URI uri : sortedURIs) {
+			for (byte b : uri.toASCIIString().getBytes(StandardCharsets.US_ASCII)) {
+				hash ^= b & 0xff;
+				hash *= 0x100000001b3L;
+			}
+			hash ^= '\n';
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	// A channel onto one state file, shared by every group in this process
+	// that uses the file. Only used while holding the class lock.
+	private static class SharedFile {
+		private final Object key;
+		private final FileChannel channel;
+		private int users = 0;
+
+		private SharedFile(Object key, FileChannel channel) {
+			this.key = key;
+			this.channel = channel;
+		}
+
+		static SharedFile open(Path path) throws IOException {
+			try {
+				Files.createFile(path);
+			} catch (FileAlreadyExistsException faee) {
+				// Fine; most opens find it there.
+			}
+			SharedFile file = files.get(keyOf(path));
+			while (file == null) {
+				FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				Object key = keyOf(path);
+				file = files.get(key);
+				if (file != null) {
+					// The file was replaced by one already open here while
+					// this was being opened. Nothing is locked through this
+					// channel yet, so closing it drops no locks.
+					channel.close();
+				} else {
+					file = new SharedFile(key, channel);
+					files.put(key, file);
+				}
+			}
+			file.users++;
+			return file;
+		}
+
+		private static Object keyOf(Path path) throws IOException {
+			Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+			return key != null ? key : path.toRealPath();
+		}
+
+		void close() {
+			if (--users > 0) {
+				return;
+			}
+			files.remove(key);
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				logger.warn("Could not close shared balancee state file", ioe);
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package ee.brucel.loadbalance;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+// Writes every LoadBalancerEvent as a span-like record, one line in
+// key=value form per event, to the "ee.brucel.loadbalance.trace" log4j
+// category (or another logger), from which a log shipper can forward them
+// to a tracing system. Start times are in microseconds since the epoch.
+//
+//   span=loadbalance.selected key=web resource=http://www1.brucel.ee
+//     start_us=1700000000000000 duration_us=3 wait_us=1 candidates=3
+//     skipped_unhealthy=1 attempt=0
+public class TracingListener implements LoadBalancerListener {
+	private final Logger traceLogger;
+	// Lets nanoTime values be turned into wall clock times.
+	private final long epochMicrosAtStart;
+	private final long nanosAtStart;
+	private final StringBuilder line = new StringBuilder(256);
+
+	public TracingListener() {
+		this(Logger.getLogger("ee.brucel.loadbalance.trace"));
+	}
+
+	public TracingListener(Logger traceLogger) {
+		this.traceLogger = traceLogger;
+		epochMicrosAtStart = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+		nanosAtStart = System.nanoTime();
+	}
+
+	// Only ever called from the single dispatching thread, so the line
+	// buffer can be reused.
+	public void onEvent(LoadBalancerEvent event) {
+		if (!traceLogger.isInfoEnabled()) {
+			return;
+		}
+		long duration = Math.max(event.getDurationNanos(), 0);
+		// The event is published when the span ends.
+		long startNanos = event.getTimeNanos() - duration - event.getWaitNanos();
+		line.setLength(0);
+		line.append("span=loadbalance.").append(event.getType().name().toLowerCase(Locale.ROOT))
+				.append(" key=").append(event.getKey())
+				.append(" resource=").append(event.getResource())
+				.append(" start_us=").append(epochMicrosAtStart
+						+ TimeUnit.NANOSECONDS.toMicros(startNanos - nanosAtStart))
+				.append(" duration_us=").append(event.getDurationNanos() < 0 ? -1
+						: TimeUnit.NANOSECONDS.toMicros(duration))
+				.append(" wait_us=").append(TimeUnit.NANOSECONDS.toMicros(event.getWaitNanos()))
+				.append(" candidates=").append(event.getCandidates())
+				.append(" skipped_unhealthy=").append(event.getSkippedUnhealthy())
+				.append(" attempt=").append(event.getAttempt());
+		traceLogger.info(line.toString());
+	}
+}
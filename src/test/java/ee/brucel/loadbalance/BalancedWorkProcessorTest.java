@@ -0,0 +1,284 @@
+package ee.brucel.loadbalance;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BalancedWorkProcessorTest {
+	private static final String LOAD_BALANCER_KEY = "processortest";
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws URISyntaxException {
+		List<URI> balancees = new ArrayList<URI>();
+		balancees.add(new URI("http://www1.brucel.ee"));
+		balancees.add(new URI("http://www2.brucel.ee"));
+		balancees.add(new URI("http://www3.brucel.ee"));
+		LoadBalancer.initializeGroup(balancees, LOAD_BALANCER_KEY);
+		executor = Executors.newFixedThreadPool(32);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testDemandFollowsGroupCapacity() throws InterruptedException {
+		SlowDoublingStrategy strategy = new SlowDoublingStrategy();
+		// Two at a time per balancee, three balancees.
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, strategy, executor, 2, false);
+		CollectingSubscriber results = runThrough(processor, 200);
+		Assert.assertNull(results.error);
+		Assert.assertEquals(200, results.items.size());
+		Assert.assertTrue("Saw " + strategy.maxConcurrent.get() + " at once",
+				strategy.maxConcurrent.get() <= 6);
+		List<Integer> sorted = new ArrayList<Integer>(results.items);
+		Collections.sort(sorted);
+		for (int i = 0; i < 200; i++) {
+			Assert.assertEquals(Integer.valueOf(2 * i), sorted.get(i));
+		}
+	}
+
+	@Test
+	public void testCapacityOnlyCountsHealthyBalancees() throws InterruptedException {
+		LoadBalancer.getGroup(LOAD_BALANCER_KEY).markAsUnhealthy(0);
+		SlowDoublingStrategy strategy = new SlowDoublingStrategy();
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, strategy, executor, 2, false);
+		CollectingSubscriber results = runThrough(processor, 200);
+		Assert.assertNull(results.error);
+		Assert.assertEquals(200, results.items.size());
+		// Two at a time on each of the two healthy balancees.
+		Assert.assertTrue("Saw " + strategy.maxConcurrent.get() + " at once",
+				strategy.maxConcurrent.get() <= 4);
+	}
+
+	@Test
+	public void testPreservesInputOrderWhenAsked() throws InterruptedException {
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, new SlowDoublingStrategy(), executor, 4, true);
+		CollectingSubscriber results = runThrough(processor, 200);
+		Assert.assertNull(results.error);
+		for (int i = 0; i < 200; i++) {
+			Assert.assertEquals(Integer.valueOf(2 * i), results.items.get(i));
+		}
+	}
+
+	@Test
+	public void testFailsOverUnhealthyBalancees() throws InterruptedException {
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, new ContextWorkStrategy<Integer, Integer>() {
+					public Integer processWork(URI uri, Integer context) throws ResourceUnhealthyException {
+						if (uri.getHost().startsWith("www2")) {
+							throw new ResourceUnhealthyException("www2 is down");
+						}
+						return context;
+					}
+				}, executor, 4, true);
+		CollectingSubscriber results = runThrough(processor, 100);
+		Assert.assertNull(results.error);
+		Assert.assertEquals(100, results.items.size());
+	}
+
+	@Test
+	public void testStreamFailsWhenEveryBalanceeIsDown() throws InterruptedException {
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, new ContextWorkStrategy<Integer, Integer>() {
+					public Integer processWork(URI uri, Integer context) throws ResourceUnhealthyException {
+						throw new ResourceUnhealthyException(uri + " is down");
+					}
+				}, executor);
+		CollectingSubscriber results = runThrough(processor, 10);
+		Assert.assertTrue(results.error instanceof IllegalStateException);
+		Assert.assertTrue(results.error.getCause() instanceof ResourceUnhealthyException);
+	}
+
+	@Test
+	public void testStrategyErrorFailsTheStream() throws InterruptedException {
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, new ContextWorkStrategy<Integer, Integer>() {
+					public Integer processWork(URI uri, Integer context) {
+						if (context == 10) {
+							throw new IllegalArgumentException("Bad item");
+						}
+						return context;
+					}
+				}, executor);
+		CollectingSubscriber results = runThrough(processor, 100);
+		Assert.assertTrue(results.error instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void testStrategyThrowingAnErrorFailsTheStream() throws InterruptedException {
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, new ContextWorkStrategy<Integer, Integer>() {
+					public Integer processWork(URI uri, Integer context) {
+						if (context == 10) {
+							throw new AssertionError("Broken item");
+						}
+						return context;
+					}
+				}, executor);
+		CollectingSubscriber results = runThrough(processor, 100);
+		Assert.assertTrue(results.error instanceof AssertionError);
+	}
+
+	@Test
+	public void testNothingIsSignalledBeforeOnSubscribeReturns() throws InterruptedException {
+		final BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, new SlowDoublingStrategy(), executor);
+		processor.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+			}
+
+			public void cancel() {
+			}
+		});
+		final AtomicInteger onSubscribeReturned = new AtomicInteger(0);
+		final AtomicInteger completedEarly = new AtomicInteger(0);
+		final CountDownLatch completed = new CountDownLatch(1);
+		processor.subscribe(new Flow.Subscriber<Integer>() {
+			public void onSubscribe(Flow.Subscription subscription) {
+				// Upstream completes on another thread while this runs.
+				Thread completer = new Thread(new Runnable() {
+					public void run() {
+						processor.onComplete();
+					}
+				});
+				completer.start();
+				try {
+					completer.join();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				onSubscribeReturned.set(1);
+			}
+
+			public void onNext(Integer item) {
+			}
+
+			public void onError(Throwable throwable) {
+				completed.countDown();
+			}
+
+			public void onComplete() {
+				if (onSubscribeReturned.get() == 0) {
+					completedEarly.incrementAndGet();
+				}
+				completed.countDown();
+			}
+		});
+		Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, completedEarly.get());
+	}
+
+	@Test
+	public void testLateUpstreamIsCancelledAfterTermination() {
+		BalancedWorkProcessor<Integer, Integer> processor = new BalancedWorkProcessor<Integer, Integer>(
+				LOAD_BALANCER_KEY, new SlowDoublingStrategy(), executor);
+		processor.subscribe(new Flow.Subscriber<Integer>() {
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.cancel();
+			}
+
+			public void onNext(Integer item) {
+			}
+
+			public void onError(Throwable throwable) {
+			}
+
+			public void onComplete() {
+			}
+		});
+		final AtomicInteger cancels = new AtomicInteger(0);
+		processor.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				Assert.fail("Requested " + n + " after termination");
+			}
+
+			public void cancel() {
+				cancels.incrementAndGet();
+			}
+		});
+		Assert.assertEquals(1, cancels.get());
+	}
+
+	private CollectingSubscriber runThrough(BalancedWorkProcessor<Integer, Integer> processor,
+			int count) throws InterruptedException {
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		processor.subscribe(subscriber);
+		SubmissionPublisher<Integer> publisher = new SubmissionPublisher<Integer>();
+		publisher.subscribe(processor);
+		for (int i = 0; i < count && !publisher.isClosed(); i++) {
+			if (publisher.getNumberOfSubscribers() == 0) {
+				// The processor cancelled after a failure.
+				break;
+			}
+			publisher.submit(i);
+		}
+		publisher.close();
+		Assert.assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+		return subscriber;
+	}
+
+	private static class SlowDoublingStrategy implements ContextWorkStrategy<Integer, Integer> {
+		private final AtomicInteger concurrent = new AtomicInteger(0);
+		private final AtomicInteger maxConcurrent = new AtomicInteger(0);
+
+		public Integer processWork(URI uri, Integer context) {
+			int now = concurrent.incrementAndGet();
+			while (maxConcurrent.get() < now) {
+				maxConcurrent.compareAndSet(maxConcurrent.get(), now);
+			}
+			try {
+				// Later items finish sooner, so completion order differs
+				// from input order.
+				Thread.sleep(context % 5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			concurrent.decrementAndGet();
+			return context * 2;
+		}
+	}
+
+	private static class CollectingSubscriber implements Flow.Subscriber<Integer> {
+		private final List<Integer> items = Collections.synchronizedList(new ArrayList<Integer>());
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Throwable error = null;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		public void onNext(Integer item) {
+			items.add(item);
+		}
+
+		public void onError(Throwable throwable) {
+			error = throwable;
+			done.countDown();
+		}
+
+		public void onComplete() {
+			done.countDown();
+		}
+	}
+}
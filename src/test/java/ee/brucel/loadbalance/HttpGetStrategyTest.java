@@ -0,0 +1,184 @@
+package ee.brucel.loadbalance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpGetStrategyTest {
+	private static final String LOAD_BALANCER_KEY = "httptest";
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private URI serverURI;
+	// Remote ports that requests arrived from, i.e. distinct connections.
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private final AtomicInteger active = new AtomicInteger(0);
+	private final AtomicInteger maxActive = new AtomicInteger(0);
+
+	@Before
+	public void startServer() throws IOException, URISyntaxException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/hello", new FixedResponseHandler(200, "Hello World"));
+		server.createContext("/broken", new FixedResponseHandler(503, "Come back later"));
+		server.createContext("/missing", new FixedResponseHandler(404, "Not here"));
+		server.createContext("/slow", new SlowHandler());
+		// One thread per exchange, so that slow requests overlap.
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+		serverURI = new URI("http://127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	@Test
+	public void testReusesConnections() throws Exception {
+		HttpGetStrategy strategy = new HttpGetStrategy();
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals("Hello World", strategy.processWork(serverURI, path("/hello")));
+		}
+		Assert.assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	public void testLimitsConnectionsPerBalancee() throws InterruptedException {
+		final HttpGetStrategy strategy = new HttpGetStrategy(3, Duration.ofSeconds(5),
+				Duration.ofSeconds(30));
+		final AtomicInteger failures = new AtomicInteger(0);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 12; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Assert.assertEquals("Slow", strategy.processWork(serverURI, path("/slow")));
+					} catch (Throwable t) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(0, failures.get());
+		Assert.assertEquals(3, maxActive.get());
+		Assert.assertTrue("Saw " + clientPorts.size() + " connections", clientPorts.size() <= 3);
+	}
+
+	@Test
+	public void testFailuresAreMapped() throws Exception {
+		HttpGetStrategy strategy = new HttpGetStrategy();
+		try {
+			strategy.processWork(serverURI, path("/broken"));
+			Assert.fail();
+		} catch (ResourceUnhealthyException rue) {
+			// 5xx means the server is having trouble.
+		}
+		try {
+			strategy.processWork(serverURI, path("/missing"));
+			Assert.fail();
+		} catch (IllegalArgumentException iae) {
+			// 404 means the consumer asked for the wrong thing.
+		}
+		try {
+			strategy.processWork(new URI("http://127.0.0.1:1"), path("/hello"));
+			Assert.fail();
+		} catch (ResourceUnhealthyException rue) {
+			// Nothing listening.
+		}
+	}
+
+	@Test
+	public void testFailsOverToLiveBalancee() throws URISyntaxException {
+		List<URI> balancees = new ArrayList<URI>();
+		// Sorts before the live server, so it is tried first.
+		URI deadURI = new URI("http://127.0.0.0:1");
+		balancees.add(deadURI);
+		balancees.add(serverURI);
+		LoadBalancer.initializeGroup(balancees, LOAD_BALANCER_KEY);
+		HttpGetStrategy strategy = new HttpGetStrategy();
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals("Hello World", LoadBalancer.doWorkOnBestBalancee(
+					LOAD_BALANCER_KEY, strategy, path("/hello")));
+		}
+		Assert.assertFalse(deadURI.equals(LoadBalancer.getBestResource(LOAD_BALANCER_KEY)));
+	}
+
+	private static Map<String, Object> path(String path) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put(HttpGetStrategy.PATH, path);
+		return parameters;
+	}
+
+	// Holds each request open for a while, keeping track of the most that
+	// were open at once.
+	private class SlowHandler implements HttpHandler {
+		private final byte[] body = "Slow".getBytes(StandardCharsets.UTF_8);
+
+		public void handle(HttpExchange exchange) throws IOException {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			int now = active.incrementAndGet();
+			while (now > maxActive.get()) {
+				maxActive.compareAndSet(maxActive.get(), now);
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} finally {
+				active.decrementAndGet();
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		}
+	}
+
+	private class FixedResponseHandler implements HttpHandler {
+		private final int status;
+		private final byte[] body;
+
+		FixedResponseHandler(int status, String body) {
+			this.status = status;
+			this.body = body.getBytes(StandardCharsets.UTF_8);
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			exchange.sendResponseHeaders(status, body.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		}
+	}
+}
@@ -1,22 +1,39 @@
 package ee.brucel.loadbalance;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
 import org.junit.Assume;
 import org.junit.Test;
 
@@ -109,6 +126,251 @@ public class LoadBalancerTest {
 		LoadBalancer.returnResource(LOAD_BALANCER_KEY, loadBalancees.get(2));
 	}
 
+	@Test
+	public void testLargeGroupSpreadsAcrossEveryMember() throws URISyntaxException {
+		List<URI> loadBalancees = new ArrayList<URI>();
+		for (int i = 0; i < 1000; i++) {
+			loadBalancees.add(new URI("http://www" + i + ".brucel.ee"));
+		}
+		LoadBalancer.setupTest(loadBalancees, LOAD_BALANCER_KEY);
+		// Each member should be handed out exactly once before any member
+		// is handed out a second time.
+		Set<URI> seen = new HashSet<URI>();
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(seen.add(LoadBalancer.getBestResource(LOAD_BALANCER_KEY)));
+		}
+		// Return one member; it is now the least burdened of the group.
+		URI returned = loadBalancees.get(500);
+		LoadBalancer.returnResource(LOAD_BALANCER_KEY, returned);
+		Assert.assertEquals(returned, LoadBalancer.getBestResource(LOAD_BALANCER_KEY));
+	}
+
+	@Test
+	public void testReleasesWithoutTheLockAreAllCounted() throws URISyntaxException, InterruptedException {
+		List<URI> loadBalancees = new ArrayList<URI>();
+		for (int i = 0; i < 100; i++) {
+			loadBalancees.add(new URI("http://www" + i + ".brucel.ee"));
+		}
+		LoadBalancer.setupTest(loadBalancees, LOAD_BALANCER_KEY);
+		final BalanceeGroup balancees = LoadBalancer.getGroup(LOAD_BALANCER_KEY);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					int[] held = new int[10];
+					for (int round = 0; round < 2000; round++) {
+						for (int i = 0; i < held.length; i++) {
+							held[i] = balancees.acquireBest();
+						}
+						for (int i = 0; i < held.length; i++) {
+							balancees.release(held[i]);
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (int i = 0; i < loadBalancees.size(); i++) {
+			Assert.assertEquals(0, balancees.inFlight(i));
+		}
+		// Releases not yet folded into the scanned counts still count.
+		int index = balancees.acquireBest();
+		balancees.release(index);
+		Assert.assertEquals(0, balancees.totalInFlight());
+	}
+
+	@Test
+	public void testSharedGroupsSeeEachOthersLoad() throws IOException {
+		List<URI> loadBalancees = simpleTestSetup();
+		File stateFile = File.createTempFile("loadbalance", ".state");
+		stateFile.deleteOnExit();
+		// Two keys mapping the same state file stand in for two processes
+		// on the same host.
+		LoadBalancer.initializeSharedGroup(loadBalancees, "processA", stateFile.toPath());
+		LoadBalancer.initializeSharedGroup(loadBalancees, "processB", stateFile.toPath());
+
+		Assert.assertEquals(loadBalancees.get(0), LoadBalancer.getBestResource("processA"));
+		Assert.assertEquals(loadBalancees.get(1), LoadBalancer.getBestResource("processA"));
+		// processB has never been asked for anything, but should know that
+		// www1 and www2 are busy.
+		Assert.assertEquals(loadBalancees.get(2), LoadBalancer.getBestResource("processB"));
+
+		// Health is shared as well.
+		LoadBalancer.returnResource("processA", loadBalancees.get(0));
+		LoadBalancer.reportUnhealthy("processA", loadBalancees.get(0));
+		for (int i = 0; i < 10; i++) {
+			URI toTest = LoadBalancer.getBestResource("processB");
+			Assert.assertFalse(loadBalancees.get(0).equals(toTest));
+			LoadBalancer.returnResource("processB", toTest);
+		}
+
+		// A different membership must neither reuse nor reset the counters
+		// that processA and processB are still using.
+		try {
+			LoadBalancer.initializeSharedGroup(loadBalancees.subList(1, 3), "processC",
+					stateFile.toPath());
+			Assert.fail("A different membership should be refused");
+		} catch (IOException ioe) {
+			// Expected.
+		}
+		Assert.assertNull(LoadBalancer.getGroup("processC"));
+		Assert.assertEquals(1, LoadBalancer.getGroup("processB").inFlight(1));
+		LoadBalancer.returnResource("processA", loadBalancees.get(1));
+		LoadBalancer.returnResource("processB", loadBalancees.get(2));
+		Assert.assertEquals(0, LoadBalancer.getGroup("processB").totalInFlight());
+	}
+
+	@Test
+	public void testSharedGroupClearsCountsOfDeadProcesses() throws IOException {
+		List<URI> loadBalancees = simpleTestSetup();
+		File stateFile = File.createTempFile("loadbalance", ".state");
+		stateFile.deleteOnExit();
+		URI[] sortedURIs = BalanceeGroup.sortURIs(loadBalancees);
+		SharedGroupState live = SharedGroupState.open(stateFile.toPath(), sortedURIs);
+		live.incrementInFlight(1);
+		// A process that is killed with requests out leaves them counted.
+		SharedGroupState dead = SharedGroupState.open(stateFile.toPath(), sortedURIs);
+		dead.incrementInFlight(0);
+		dead.incrementInFlight(0);
+		dead.incrementInFlight(1);
+		dead.abandon();
+		Assert.assertEquals(2, live.inFlight(0));
+
+		// Its replacement clears the dead process's counts, but not those
+		// of processes still running.
+		LoadBalancer.initializeSharedGroup(loadBalancees, "replacement", stateFile.toPath());
+		BalanceeGroup replacement = LoadBalancer.getGroup("replacement");
+		Assert.assertEquals(0, replacement.inFlight(0));
+		Assert.assertEquals(1, replacement.inFlight(1));
+		Assert.assertEquals(loadBalancees.get(0), LoadBalancer.getBestResource("replacement"));
+		live.decrementInFlight(1);
+		LoadBalancer.returnResource("replacement", loadBalancees.get(0));
+		Assert.assertEquals(0, replacement.totalInFlight());
+	}
+
+	@Test
+	public void testReinitializingASharedGroupGivesBackItsSlot() throws IOException {
+		List<URI> loadBalancees = simpleTestSetup();
+		File stateFile = File.createTempFile("loadbalance", ".state");
+		stateFile.deleteOnExit();
+		LoadBalancer.initializeSharedGroup(loadBalancees, "reinitialized", stateFile.toPath());
+		// A request still out on a replaced group keeps its slot, and its
+		// count, until it is released.
+		BalanceeGroup first = LoadBalancer.getGroup("reinitialized");
+		int index = first.acquireBest();
+		for (int i = 0; i < 2 * SharedGroupState.SLOTS; i++) {
+			LoadBalancer.initializeSharedGroup(loadBalancees, "reinitialized", stateFile.toPath());
+		}
+		Assert.assertEquals(1, LoadBalancer.getGroup("reinitialized").totalInFlight());
+		first.release(index);
+		Assert.assertEquals(0, LoadBalancer.getGroup("reinitialized").totalInFlight());
+		for (int i = 0; i < 2 * SharedGroupState.SLOTS; i++) {
+			LoadBalancer.initializeSharedGroup(loadBalancees, "reinitialized", stateFile.toPath());
+		}
+	}
+
+	@Test
+	public void testSharedGroupFollowsARecreatedStateFile() throws IOException {
+		List<URI> loadBalancees = simpleTestSetup();
+		File stateFile = File.createTempFile("loadbalance", ".state");
+		stateFile.deleteOnExit();
+		LoadBalancer.initializeSharedGroup(loadBalancees, "old", stateFile.toPath());
+		Assert.assertEquals(loadBalancees.get(0), LoadBalancer.getBestResource("old"));
+
+		// Removing the file, as after a change of membership, must not leave
+		// new groups sharing the old file's state.
+		Assert.assertTrue(stateFile.delete());
+		LoadBalancer.initializeSharedGroup(loadBalancees, "newA", stateFile.toPath());
+		LoadBalancer.initializeSharedGroup(loadBalancees, "newB", stateFile.toPath());
+		Assert.assertTrue(stateFile.length() > 0);
+		Assert.assertEquals(0, LoadBalancer.getGroup("newA").totalInFlight());
+		Assert.assertEquals(loadBalancees.get(0), LoadBalancer.getBestResource("newA"));
+		Assert.assertEquals(1, LoadBalancer.getGroup("newB").inFlight(0));
+		LoadBalancer.returnResource("newA", loadBalancees.get(0));
+		LoadBalancer.returnResource("old", loadBalancees.get(0));
+	}
+
+	@Test
+	public void testWarmStartFromSnapshot() throws IOException {
+		List<URI> loadBalancees = simpleTestSetup();
+		File snapshotFile = File.createTempFile("loadbalance", ".snapshot");
+		snapshotFile.deleteOnExit();
+		URI toMarkAsUnhealthy = LoadBalancer.getBestResource(LOAD_BALANCER_KEY);
+		LoadBalancer.reportUnhealthy(LOAD_BALANCER_KEY, toMarkAsUnhealthy);
+		LoadBalancer.returnResource(LOAD_BALANCER_KEY, toMarkAsUnhealthy);
+		LoadBalancer.writeSnapshot(LOAD_BALANCER_KEY, snapshotFile.toPath());
+
+		// Pretend that this is a new process starting up.
+		LoadBalancer.setupTest(new ArrayList<URI>(), LOAD_BALANCER_KEY);
+		LoadBalancer.initializeGroup(loadBalancees, LOAD_BALANCER_KEY, snapshotFile.toPath());
+		for (int i = 0; i < 10; i++) {
+			URI toTest = LoadBalancer.getBestResource(LOAD_BALANCER_KEY);
+			Assert.assertFalse(toMarkAsUnhealthy.equals(toTest));
+			LoadBalancer.returnResource(LOAD_BALANCER_KEY, toTest);
+		}
+
+		// A snapshot which cannot be read is ignored.
+		Files.write(snapshotFile.toPath(), new byte[] { 1, 2, 3 });
+		LoadBalancer.initializeGroup(loadBalancees, LOAD_BALANCER_KEY, snapshotFile.toPath());
+		Assert.assertEquals(toMarkAsUnhealthy, LoadBalancer.getBestResource(LOAD_BALANCER_KEY));
+
+		// As is one far too big to be a snapshot.
+		try (RandomAccessFile huge = new RandomAccessFile(snapshotFile, "rw")) {
+			huge.setLength(GroupSnapshot.MAX_SNAPSHOT_BYTES + 1);
+		}
+		LoadBalancer.initializeGroup(loadBalancees, LOAD_BALANCER_KEY, snapshotFile.toPath());
+		Assert.assertEquals(toMarkAsUnhealthy, LoadBalancer.getBestResource(LOAD_BALANCER_KEY));
+		snapshotFile.delete();
+	}
+
+	@Test
+	public void testSubsetsSpreadEvenlyWithLittleChurn() throws URISyntaxException {
+		List<URI> loadBalancees = new ArrayList<URI>();
+		for (int i = 0; i < 100; i++) {
+			loadBalancees.add(new URI("http://www" + i + ".brucel.ee"));
+		}
+		int clientCount = 37;
+		Map<URI, Integer> clientsPerBalancee = new HashMap<URI, Integer>();
+		List<List<URI>> subsets = new ArrayList<List<URI>>();
+		for (int clientId = 0; clientId < clientCount; clientId++) {
+			List<URI> subset = Aperture.subset(loadBalancees, 10, clientId, clientCount);
+			Assert.assertEquals(10, subset.size());
+			// Same answer every time.
+			Assert.assertEquals(subset, Aperture.subset(loadBalancees, 10, clientId, clientCount));
+			subsets.add(subset);
+			for (URI uri : subset) {
+				Integer count = clientsPerBalancee.get(uri);
+				clientsPerBalancee.put(uri, count == null ? 1 : count + 1);
+			}
+		}
+		// 37 clients * 10 each over 100 balancees is 3.7 clients each.
+		Assert.assertEquals(100, clientsPerBalancee.size());
+		for (Integer count : clientsPerBalancee.values()) {
+			Assert.assertTrue(count == 3 || count == 4);
+		}
+
+		// Take one balancee away; every client keeps nearly all of its
+		// subset.
+		URI removed = loadBalancees.remove(42);
+		for (int clientId = 0; clientId < clientCount; clientId++) {
+			Set<URI> before = new HashSet<URI>(subsets.get(clientId));
+			before.remove(removed);
+			before.removeAll(Aperture.subset(loadBalancees, 10, clientId, clientCount));
+			Assert.assertTrue(before.size() <= 2);
+		}
+
+		LoadBalancer.initializeSubsetGroup(loadBalancees, LOAD_BALANCER_KEY, 10, 0, clientCount);
+		Set<URI> seen = new HashSet<URI>();
+		for (int i = 0; i < 100; i++) {
+			seen.add(LoadBalancer.getBestResource(LOAD_BALANCER_KEY));
+		}
+		Assert.assertEquals(new HashSet<URI>(Aperture.subset(loadBalancees, 10, 0, clientCount)), seen);
+	}
+
 	@Test
 	public void testMultipleKeyDoesNotCauseConflict() {
 		List<URI> normalItems = simpleTestSetup();
@@ -326,6 +588,68 @@ public class LoadBalancerTest {
 		}
 	}
 
+	@Test
+	public void testStickySessionAffinityFailsOver() {
+		List<URI> loadBalancees = simpleTestSetup();
+		LoadBalancer.enableSessionAffinity(LOAD_BALANCER_KEY, 16);
+		final AtomicInteger strategyCalls = new AtomicInteger(0);
+		StickySessionStrategy strategy = new StickySessionStrategy() {
+			public URI giveURIByStrategy(String stickySessionKey, URI[] uris) {
+				strategyCalls.incrementAndGet();
+				return uris[0];
+			}
+		};
+		URI myURI = LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session", strategy);
+		Assert.assertEquals(loadBalancees.get(0), myURI);
+		Assert.assertEquals(myURI, LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session", strategy));
+		// The strategy's answer is remembered.
+		Assert.assertEquals(1, strategyCalls.get());
+
+		// Once the sticky balancee is unhealthy, the session moves elsewhere
+		// and stays there.
+		LoadBalancer.reportUnhealthy(LOAD_BALANCER_KEY, myURI);
+		URI failedOver = LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session", strategy);
+		Assert.assertFalse(myURI.equals(failedOver));
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(failedOver, LoadBalancer.getStickyURI(
+					LOAD_BALANCER_KEY, "session", strategy));
+		}
+		Assert.assertEquals(1, strategyCalls.get());
+
+		// Once the original recovers, the session moves back.
+		BalanceeGroup balancees = LoadBalancer.getGroup(LOAD_BALANCER_KEY);
+		balancees.markAsUnhealthy(0, HealthContainer.UNHEALTHY_PERIOD_MILLIS - 50);
+		Assert.assertEquals(failedOver, LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session", strategy));
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		Assert.assertEquals(myURI, LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session", strategy));
+
+		// If it fails again, the session goes back to the same fallback,
+		// even though that one is now the most burdened.
+		LoadBalancer.reportUnhealthy(LOAD_BALANCER_KEY, myURI);
+		Assert.assertEquals(failedOver, LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session", strategy));
+		Assert.assertEquals(1, strategyCalls.get());
+
+		// The table is bounded; old sessions are forgotten.
+		for (int i = 0; i < 1000; i++) {
+			LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session" + i, strategy);
+		}
+		int callsBefore = strategyCalls.get();
+		LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session0", strategy);
+		Assert.assertEquals(callsBefore + 1, strategyCalls.get());
+		Assert.assertEquals(16, balancees.getSessionAffinity().size());
+
+		// The bound holds for the table as a whole, however small.
+		LoadBalancer.enableSessionAffinity(LOAD_BALANCER_KEY, 1);
+		for (int i = 0; i < 100; i++) {
+			LoadBalancer.getStickyURI(LOAD_BALANCER_KEY, "session" + i, strategy);
+		}
+		Assert.assertEquals(1, balancees.getSessionAffinity().size());
+	}
+
 	@Test
 	public void testShowAnotherStickyStrategy() {
 		List<URI> simpleTestSetup = simpleTestSetup();
@@ -384,6 +708,376 @@ public class LoadBalancerTest {
 			strategy, null));
 	}
 
+	@Test
+	public void testContextWorkStrategyDoesNotAllocate(){
+		com.sun.management.ThreadMXBean threadBean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		simpleTestSetup();
+		ContextWorkStrategy<StringBuilder, StringBuilder> strategy = new AppendHostStrategy();
+		// A context object that is reused for every request.
+		StringBuilder context = new StringBuilder(64);
+		// Warm up so that class loading and compilation are out of the way.
+		for (int i = 0; i < 20000; i++) {
+			LoadBalancer.doWorkOnBestBalancee(LOAD_BALANCER_KEY, strategy, context);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 10000; i++) {
+			LoadBalancer.doWorkOnBestBalancee(LOAD_BALANCER_KEY, strategy, context);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		// Leave a little room for the measurement itself.
+		Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
+
+	@Test
+	public void testListenersSeeSelectionsAndRetries() throws InterruptedException {
+		final List<URI> loadBalancees = simpleTestSetup();
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		LoadBalancerListener listener = new LoadBalancerListener() {
+			public void onEvent(LoadBalancerEvent event) {
+				if (LOAD_BALANCER_KEY.equals(event.getKey())) {
+					seen.add(event.getType() + " " + event.getResource().getHost()
+							+ " " + event.getSkippedUnhealthy() + " " + event.getAttempt());
+				}
+			}
+		};
+		StringWriter trace = new StringWriter();
+		Logger traceLogger = Logger.getLogger("loadbalancertest.trace");
+		traceLogger.addAppender(new WriterAppender(new PatternLayout("%m%n"), trace));
+		TracingListener tracingListener = new TracingListener(traceLogger);
+		LoadBalancer.addListener(listener);
+		LoadBalancer.addListener(tracingListener);
+		try {
+			ResourceWorkStrategy<String> strategy = new ResourceWorkStrategy<String>() {
+				public String processWork(URI uri, Map<String, Object> parameters) throws ResourceUnhealthyException {
+					if (uri.equals(loadBalancees.get(0))) {
+						throw new ResourceUnhealthyException("www1 is down");
+					}
+					return uri.getHost();
+				}
+			};
+			Assert.assertEquals("www2.brucel.ee",
+					LoadBalancer.doWorkOnBestBalancee(LOAD_BALANCER_KEY, strategy, null));
+			Assert.assertEquals("www3.brucel.ee",
+					LoadBalancer.doWorkOnBestBalancee(LOAD_BALANCER_KEY, strategy, null));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (seen.size() < 8 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		} finally {
+			LoadBalancer.removeListener(listener);
+			LoadBalancer.removeListener(tracingListener);
+		}
+		Assert.assertEquals(Arrays.asList(
+				"SELECTED www1.brucel.ee 0 0",
+				"MARKED_UNHEALTHY www1.brucel.ee 0 0",
+				"RETRIED www1.brucel.ee 0 1",
+				"RELEASED www1.brucel.ee 0 0",
+				// www2 and www3 have never been used, so would have been
+				// picked over www1 even if it were healthy.
+				"SELECTED www2.brucel.ee 0 0",
+				"RELEASED www2.brucel.ee 0 0",
+				"SELECTED www3.brucel.ee 0 0",
+				"RELEASED www3.brucel.ee 0 0"), seen);
+		Assert.assertTrue(trace.toString().contains(
+				"span=loadbalance.retried key=mytest resource=http://www1.brucel.ee"));
+	}
+
+	@Test
+	public void testListenerErrorsDoNotStopDelivery() throws InterruptedException {
+		simpleTestSetup();
+		final AtomicInteger selections = new AtomicInteger(0);
+		LoadBalancerListener counting = new LoadBalancerListener() {
+			public void onEvent(LoadBalancerEvent event) {
+				if (LOAD_BALANCER_KEY.equals(event.getKey())
+						&& event.getType() == LoadBalancerEvent.Type.SELECTED) {
+					selections.incrementAndGet();
+				}
+			}
+		};
+		LoadBalancerListener broken = new LoadBalancerListener() {
+			public void onEvent(LoadBalancerEvent event) {
+				throw new AssertionError("Broken listener");
+			}
+		};
+		LoadBalancer.addListener(counting);
+		LoadBalancer.addListener(broken);
+		try {
+			for (int i = 1; i <= 2; i++) {
+				LoadBalancer.getBestResource(LOAD_BALANCER_KEY);
+				long deadline = System.currentTimeMillis() + 5000;
+				while (selections.get() < i && System.currentTimeMillis() < deadline) {
+					Thread.sleep(10);
+				}
+				Assert.assertEquals(i, selections.get());
+			}
+		} finally {
+			LoadBalancer.removeListener(counting);
+			LoadBalancer.removeListener(broken);
+		}
+	}
+
+	@Test
+	public void testTracingIgnoresDefaultLocale() throws URISyntaxException {
+		StringWriter trace = new StringWriter();
+		Logger traceLogger = Logger.getLogger("loadbalancertest.localetrace");
+		traceLogger.addAppender(new WriterAppender(new PatternLayout("%m%n"), trace));
+		LoadBalancerEvent event = new LoadBalancerEvent();
+		event.set(LoadBalancerEvent.Type.RETRIED, LOAD_BALANCER_KEY, new URI("http://www1.brucel.ee"),
+				System.nanoTime(), 0, 0, 0, 0, 1);
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			new TracingListener(traceLogger).onEvent(event);
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+		Assert.assertTrue(trace.toString(), trace.toString().startsWith("span=loadbalance.retried "));
+	}
+
+	@Test
+	public void testSkippedUnhealthyOnlyCountsMembersPassedOver() throws InterruptedException {
+		List<URI> loadBalancees = simpleTestSetup();
+		BalanceeGroup balancees = new BalanceeGroup("skiptest", loadBalancees);
+		// In flight: www1 5, www2 3 and unhealthy, www3 1. www3 is the best
+		// regardless of health, so nothing was skipped to pick it.
+		for (int i = 0; i < 5; i++) {
+			balancees.acquireSpecific(0);
+		}
+		for (int i = 0; i < 3; i++) {
+			balancees.acquireSpecific(1);
+		}
+		balancees.acquireSpecific(2);
+		balancees.markAsUnhealthy(1);
+		final List<Integer> selections = Collections.synchronizedList(new ArrayList<Integer>());
+		LoadBalancerListener listener = new LoadBalancerListener() {
+			public void onEvent(LoadBalancerEvent event) {
+				if ("skiptest".equals(event.getKey())
+						&& event.getType() == LoadBalancerEvent.Type.SELECTED) {
+					// Events are reused, so only keep what is needed.
+					selections.add(event.getSkippedUnhealthy());
+				}
+			}
+		};
+		LoadBalancer.addListener(listener);
+		try {
+			Assert.assertEquals(2, balancees.acquireBest());
+			long deadline = System.currentTimeMillis() + 5000;
+			while (selections.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(Arrays.asList(0), selections);
+		} finally {
+			LoadBalancer.removeListener(listener);
+		}
+	}
+
+	@Test
+	public void testBatchRunsAcrossGroupInInputOrder(){
+		List<URI> loadBalancees = simpleTestSetup();
+		PerHostCountingStrategy strategy = new PerHostCountingStrategy(loadBalancees.get(0));
+		List<Integer> contexts = new ArrayList<Integer>();
+		for (int i = 0; i < 300; i++) {
+			contexts.add(i);
+		}
+		// Two at a time per balancee, even though www1 is down and its
+		// share of the group's capacity has nowhere else to go.
+		List<Integer> results = LoadBalancer.doWorkOnAllBalancees(LOAD_BALANCER_KEY,
+				strategy, contexts, 2);
+		Assert.assertEquals(300, results.size());
+		for (int i = 0; i < 300; i++) {
+			Assert.assertEquals(Integer.valueOf(2 * i), results.get(i));
+		}
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("www2.brucel.ee", "www3.brucel.ee")),
+				strategy.maxRunning.keySet());
+		int busiest = 0;
+		for (Map.Entry<String, AtomicInteger> host : strategy.maxRunning.entrySet()) {
+			Assert.assertTrue(host.getKey() + " ran " + host.getValue() + " at once",
+					host.getValue().get() <= 2);
+			busiest = Math.max(busiest, host.getValue().get());
+		}
+		Assert.assertEquals(2, busiest);
+		Assert.assertEquals(0, LoadBalancer.getGroup(LOAD_BALANCER_KEY).totalInFlight());
+	}
+
+	@Test
+	public void testConcurrentBatchesShareThePerBalanceeLimit() throws InterruptedException {
+		List<URI> loadBalancees = simpleTestSetup();
+		final PerHostCountingStrategy strategy = new PerHostCountingStrategy(null);
+		final List<Integer> contexts = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++) {
+			contexts.add(i);
+		}
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					LoadBalancer.doWorkOnAllBalancees(LOAD_BALANCER_KEY, strategy, contexts, 2);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(3, strategy.maxRunning.size());
+		for (Map.Entry<String, AtomicInteger> host : strategy.maxRunning.entrySet()) {
+			Assert.assertTrue(host.getKey() + " ran " + host.getValue() + " at once",
+					host.getValue().get() <= 2);
+		}
+	}
+
+	@Test
+	public void testBatchFailureStopsTheBatch() throws InterruptedException {
+		simpleTestSetup();
+		final AtomicInteger started = new AtomicInteger(0);
+		final IllegalStateException boom = new IllegalStateException("boom");
+		ContextWorkStrategy<Integer, Integer> strategy = new ContextWorkStrategy<Integer, Integer>() {
+			public Integer processWork(URI uri, Integer context) {
+				started.incrementAndGet();
+				if (context == 20) {
+					throw boom;
+				}
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return context;
+			}
+		};
+		List<Integer> contexts = new ArrayList<Integer>();
+		for (int i = 0; i < 400; i++) {
+			contexts.add(i);
+		}
+		try {
+			LoadBalancer.doWorkOnAllBalancees(LOAD_BALANCER_KEY, strategy, contexts, 2);
+			Assert.fail("The batch should have failed");
+		} catch (IllegalStateException ise) {
+			Assert.assertSame(boom, ise);
+		}
+		// Everything that was started has finished, and nothing else starts.
+		Assert.assertEquals(0, LoadBalancer.getGroup(LOAD_BALANCER_KEY).totalInFlight());
+		int startedByNow = started.get();
+		Assert.assertTrue("Started " + startedByNow, startedByNow < 400);
+		Thread.sleep(50);
+		Assert.assertEquals(startedByNow, started.get());
+	}
+
+	@Test
+	public void testBatchesOnOtherGroupsDoNotWaitForEachOther() throws Exception {
+		simpleTestSetup();
+		List<URI> slowBalancees = new ArrayList<URI>();
+		for (int i = 0; i < 40; i++) {
+			slowBalancees.add(new URI("http://slow" + i + ".brucel.ee"));
+		}
+		LoadBalancer.initializeGroup(slowBalancees, "slowgroup");
+		final AtomicInteger slowStarted = new AtomicInteger(0);
+		final ContextWorkStrategy<Integer, Integer> slowStrategy = new ContextWorkStrategy<Integer, Integer>() {
+			public Integer processWork(URI uri, Integer context) {
+				slowStarted.incrementAndGet();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return context;
+			}
+		};
+		final List<Integer> slowContexts = new ArrayList<Integer>();
+		for (int i = 0; i < 5000; i++) {
+			slowContexts.add(i);
+		}
+		// Enough to keep a whole group's worth of workers busy for a while.
+		Thread slowBatch = new Thread(new Runnable() {
+			public void run() {
+				LoadBalancer.doWorkOnAllBalancees("slowgroup", slowStrategy, slowContexts);
+			}
+		});
+		slowBatch.start();
+		// Wait until the first items have finished, so every worker the
+		// slow batch is going to get has started.
+		long deadline = System.currentTimeMillis() + 10000;
+		while (slowStarted.get() < 600 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// Both items have to be running at once to finish, so they cannot
+		// both be run on the calling thread.
+		final CyclicBarrier together = new CyclicBarrier(2);
+		ContextWorkStrategy<Integer, Integer> pairedStrategy = new ContextWorkStrategy<Integer, Integer>() {
+			public Integer processWork(URI uri, Integer context) {
+				try {
+					together.await(5, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+				return context * 2;
+			}
+		};
+		long started = System.nanoTime();
+		List<Integer> results = LoadBalancer.doWorkOnAllBalancees(LOAD_BALANCER_KEY,
+				pairedStrategy, Arrays.asList(1, 2), 2);
+		long tookMillis = (System.nanoTime() - started) / 1000000;
+		Assert.assertEquals(Arrays.asList(2, 4), results);
+		Assert.assertTrue("Took " + tookMillis + " ms", tookMillis < 500);
+		slowBatch.join();
+	}
+
+	@Test
+	public void testBatchGivesUpWhenEveryBalanceeIsDown() {
+		simpleTestSetup();
+		final AtomicInteger attempts = new AtomicInteger(0);
+		ContextWorkStrategy<Integer, Integer> strategy = new ContextWorkStrategy<Integer, Integer>() {
+			public Integer processWork(URI uri, Integer context) throws ResourceUnhealthyException {
+				attempts.incrementAndGet();
+				throw new ResourceUnhealthyException(uri + " is down");
+			}
+		};
+		try {
+			LoadBalancer.doWorkOnAllBalancees(LOAD_BALANCER_KEY, strategy, Arrays.asList(1, 2, 3), 2);
+			Assert.fail("The batch should have failed");
+		} catch (IllegalStateException ise) {
+			Assert.assertTrue(ise.getCause() instanceof ResourceUnhealthyException);
+		}
+		// Each item tries each balancee at most once, plus the one that
+		// shows it has come back round.
+		Assert.assertTrue("Attempts " + attempts.get(), attempts.get() <= 3 * 4);
+		Assert.assertEquals(0, LoadBalancer.getGroup(LOAD_BALANCER_KEY).totalInFlight());
+	}
+
+	@Test
+	public void testBatchFailsOnCheckedExceptions() {
+		simpleTestSetup();
+		final Exception checked = new Exception("checked");
+		ContextWorkStrategy<Integer, Integer> strategy = new ContextWorkStrategy<Integer, Integer>() {
+			public Integer processWork(URI uri, Integer context) {
+				if (context == 5) {
+					LoadBalancerTest.<RuntimeException>sneakyThrow(checked);
+				}
+				return context;
+			}
+		};
+		List<Integer> contexts = new ArrayList<Integer>();
+		for (int i = 0; i < 10; i++) {
+			contexts.add(i);
+		}
+		try {
+			LoadBalancer.doWorkOnAllBalancees(LOAD_BALANCER_KEY, strategy, contexts, 2);
+			Assert.fail("The batch should have failed");
+		} catch (UndeclaredThrowableException ute) {
+			Assert.assertSame(checked, ute.getCause());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E extends Throwable> void sneakyThrow(Throwable t) throws E {
+		throw (E) t;
+	}
+
 	@Test
 	public void testGetWebWorkStrategy(){
 		List<URI> uris = realURITestSetup();
@@ -481,6 +1175,47 @@ public class LoadBalancerTest {
 
 	}
 
+	// Doubles its context after a short pause, keeping track of the most
+	// calls that were running at once against each host.
+	private static class PerHostCountingStrategy implements ContextWorkStrategy<Integer, Integer> {
+		private final URI down;
+		private final Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+		private final Map<String, AtomicInteger> maxRunning = new ConcurrentHashMap<String, AtomicInteger>();
+
+		PerHostCountingStrategy(URI down) {
+			this.down = down;
+		}
+
+		public Integer processWork(URI uri, Integer context) throws ResourceUnhealthyException {
+			if (uri.equals(down)) {
+				throw new ResourceUnhealthyException(uri + " is down");
+			}
+			String host = uri.getHost();
+			running.putIfAbsent(host, new AtomicInteger(0));
+			maxRunning.putIfAbsent(host, new AtomicInteger(0));
+			int now = running.get(host).incrementAndGet();
+			AtomicInteger max = maxRunning.get(host);
+			while (now > max.get()) {
+				max.compareAndSet(max.get(), now);
+			}
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} finally {
+				running.get(host).decrementAndGet();
+			}
+			return context * 2;
+		}
+	}
+
+	private static class AppendHostStrategy implements ContextWorkStrategy<StringBuilder, StringBuilder> {
+		public StringBuilder processWork(URI uri, StringBuilder context) throws ResourceUnhealthyException, IllegalArgumentException {
+			context.setLength(0);
+			return context.append(uri.getHost());
+		}
+	}
+
 	private class WebGetStrategy implements ResourceWorkStrategy<String> {
 		public String processWork(URI uri, Map<String, Object> parameters) throws ResourceUnhealthyException, IllegalArgumentException {
 			//Pulled and modified from: http://stackoverflow.com/a/238634/1768374